@@ -0,0 +1,160 @@
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import bench.Protocol;
+
+/**
+ * The benchmarks' way into the unnamed package, see bench.Protocol.
+ */
+public class ProtocolImpl implements Protocol {
+
+	private static class PacketsImpl implements Packets {
+		private final TCPpacket packet = new TCPpacket();
+		private final TCPpacket into = new TCPpacket();
+		private final ByteBuffer encoded;
+		private final byte[] serialized;
+		private final short checksum;
+		private long time;
+
+		PacketsImpl(int mtu) {
+			byte[] data = new byte[mtu - 20 - 8 - 24]; // as Transport.maxDataSize
+			new Random(640).nextBytes(data);
+			packet.setAck();
+			packet.setSeq(1);
+			packet.setAckNum(1);
+			packet.setData(data);
+			packet.setCurrentTime();
+			encoded = ByteBuffer.allocateDirect(packet.getSerialLen());
+			packet.encode(encoded);
+			encoded.flip();
+			serialized = packet.serialize();
+			checksum = Checksum.checksum(encoded, 0, encoded.limit());
+		}
+
+		public int encode() {
+			encoded.clear();
+			int n = packet.encode(encoded);
+			encoded.flip();
+			return n;
+		}
+
+		public int decode() {
+			try {
+				return into.decode(encoded).getDataLen();
+			} catch (SerialException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public int serialize() {
+			return packet.serialize().length;
+		}
+
+		public int deserialize() {
+			try {
+				return TCPpacket.deserialize(serialized).getDataLen();
+			} catch (SerialException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public int checksum() {
+			return Checksum.checksum(encoded, 0, encoded.limit());
+		}
+
+		public int updateChecksum() {
+			return Checksum.update(checksum, time, ++time);
+		}
+	}
+
+	private static class WindowsImpl implements Windows {
+		private final Window<TCPpacket> window;
+		private final int[] seqs;
+		private final int[] order;	// arrival order of the segments of a window
+		private final TCPpacket segment = new TCPpacket();
+		private final TreeMap<Integer, TCPpacket> held = new TreeMap<>();
+		private int next;
+
+		WindowsImpl(int sws, String pattern) {
+			segment.setData(new byte[1448]);
+			window = new Window<>(sws);
+			seqs = new int[window.capacity()];
+			while (!window.isFull())
+				seqs[window.add(segment)] = next++;
+			order = new int[sws];
+			for (int i = 0; i < sws; i++)
+				order[i] = i;
+			switch (pattern) {
+				case "inorder":
+					break;
+				case "reverse":
+					for (int i = 0; i < sws; i++)
+						order[i] = sws - 1 - i;
+					break;
+				case "swap":
+					for (int i = 0; i + 1 < sws; i += 2) {
+						order[i] = i + 1;
+						order[i + 1] = i;
+					}
+					break;
+				case "random":
+					Random rand = new Random(640);
+					for (int i = sws - 1; i > 0; i--) {
+						int j = rand.nextInt(i + 1);
+						int t = order[i];
+						order[i] = order[j];
+						order[j] = t;
+					}
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown arrival pattern " + pattern);
+			}
+		}
+
+		public int ackAndRefill() {
+			int s = seqs[window.slot(0)];
+			window.slide(1);
+			seqs[window.add(segment)] = next++;
+			return s;
+		}
+
+		/**
+		 * As Receiver.handlePacket, without the writes.
+		 */
+		public int receiveWindow() {
+			final int len = segment.getDataLen();
+			int ack = 1;
+			int delivered = 0;
+			for (int i : order) {
+				final int seq = 1 + i * len;
+				if (seq > ack) {
+					TCPpacket old = held.get(seq);
+					if (old == null || old.getDataLen() < len)
+						held.put(seq, segment);
+					continue;
+				}
+				ack = seq + len;
+				delivered++;
+				Map.Entry<Integer, TCPpacket> e;
+				while ((e = held.firstEntry()) != null && e.getKey() <= ack) {
+					held.pollFirstEntry();
+					if (e.getKey() + e.getValue().getDataLen() > ack) {
+						ack = e.getKey() + e.getValue().getDataLen();
+						delivered++;
+					}
+				}
+			}
+			return delivered;
+		}
+	}
+
+	public Packets packets(int mtu) {
+		return new PacketsImpl(mtu);
+	}
+
+	public Windows window(int sws, String pattern) {
+		return new WindowsImpl(sws, pattern);
+	}
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per packet cost of encoding, decoding and checksumming a full
+ * data segment at each mtu.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketBenchmark {
+
+	@Param({"576", "1500", "9000", "65000"})
+	int mtu;
+
+	Protocol.Packets packets;
+
+	@Setup
+	public void setup() {
+		packets = Protocol.load().packets(mtu);
+	}
+
+	@Benchmark
+	public int encode() {
+		return packets.encode();
+	}
+
+	@Benchmark
+	public int decode() {
+		return packets.decode();
+	}
+
+	@Benchmark
+	public int serialize() {
+		return packets.serialize();
+	}
+
+	@Benchmark
+	public int deserialize() {
+		return packets.deserialize();
+	}
+
+	@Benchmark
+	public int checksum() {
+		return packets.checksum();
+	}
+
+	@Benchmark
+	public int updateChecksum() {
+		return packets.updateChecksum();
+	}
+}
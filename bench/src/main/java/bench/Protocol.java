@@ -0,0 +1,73 @@
+package bench;
+
+/**
+ * JMH will not take benchmarks in the unnamed package, and a class in
+ * a package can not name TCPpacket, Window and the rest, which are in
+ * the unnamed package. So the benchmarks call the protocol through
+ * these interfaces, implemented by ProtocolImpl next to them. There is
+ * only ever one implementation loaded so the calls are inlined by the
+ * JIT like direct ones.
+ *
+ * Each operation returns something derived from its work for the
+ * benchmark to hand to a Blackhole.
+ */
+public interface Protocol {
+
+	/**
+	 * One data packet filling an mtu, with its encoded form.
+	 */
+	interface Packets {
+		/** TCPpacket.encode into a reused direct buffer */
+		int encode();
+
+		/** TCPpacket.decode of the encoded packet into a reused packet, checksum included */
+		int decode();
+
+		/** TCPpacket.serialize, a new array per call */
+		int serialize();
+
+		/** TCPpacket.deserialize, a new packet per call */
+		int deserialize();
+
+		/** Checksum.checksum over the encoded packet */
+		int checksum();
+
+		/** Checksum.update of the timestamp, as on a retransmit */
+		int updateChecksum();
+	}
+
+	/**
+	 * A window of sws segments, as the Sender keeps it in a ring and
+	 * the Receiver holds it by seq.
+	 */
+	interface Windows {
+		/**
+		 * What the Sender does per cumulative ack of one segment: the
+		 * oldest slot is freed and a new segment is added at the end.
+		 */
+		int ackAndRefill();
+
+		/**
+		 * What the Receiver does for a whole window of segments
+		 * arriving in the order of the pattern: each one past the
+		 * ack is held in a map by seq, and the ones that became
+		 * contiguous are taken off the front.
+		 */
+		int receiveWindow();
+	}
+
+	Packets packets(int mtu);
+
+	/**
+	 * @param pattern inorder, reverse, swap (adjacent pairs swapped) or random
+	 */
+	Windows window(int sws, String pattern);
+
+	static Protocol load() {
+		try {
+			return (Protocol) Class.forName("ProtocolImpl").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("ProtocolImpl is missing from the benchmarks jar", e);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The sliding window at several sizes: the Sender's work per ack on
+ * its ring, and the Receiver's work on its map of held segments for a
+ * window arriving in order, reversed, with neighbours swapped or
+ * shuffled.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WindowBenchmark {
+
+	@State(Scope.Thread)
+	public static class SenderWindow {
+		@Param({"8", "64", "512", "4096"})
+		int sws;
+
+		Protocol.Windows window;
+
+		@Setup
+		public void setup() {
+			window = Protocol.load().window(sws, "inorder");
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ReceiverWindow {
+		@Param({"8", "64", "512", "4096"})
+		int sws;
+
+		@Param({"inorder", "reverse", "swap", "random"})
+		String pattern;
+
+		Protocol.Windows window;
+
+		@Setup
+		public void setup() {
+			window = Protocol.load().window(sws, pattern);
+		}
+	}
+
+	@Benchmark
+	public int senderAck(SenderWindow s) {
+		return s.window.ackAndRefill();
+	}
+
+	/**
+	 * Per window, divide by sws for the cost per segment.
+	 */
+	@Benchmark
+	public int receiverWindow(ReceiverWindow r) {
+		return r.window.receiveWindow();
+	}
+}
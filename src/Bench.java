@@ -0,0 +1,182 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Rough timings of the protocol hot paths, run with make bench.
+ * Each case is warmed up, then timed over a few rounds keeping the
+ * best one (the least disturbed by GC and other processes). Results
+ * are accumulated into a sink so the JIT can not drop the work.
+ */
+public class Bench {
+
+	private static final int[] MTUS = {576, 1500, 9000, 65000};
+	private static final int[] WINDOWS = {8, 64, 512, 4096, 65536};
+	private static long sink;
+
+	/**
+	 * The checksum loop TCPpacket used before Checksum,
+	 * one getShort() at a time checking for a carry after every add.
+	 */
+	private static short shortChecksum(ByteBuffer buf, int from, int to) {
+		int sum = 0;
+		for (int i = from; i < to; i += 2) {
+			sum += buf.getShort(i);
+			if ((sum & 0xFFFF0000) > 0) {
+				sum &= 0xFFFF;
+				sum++;
+			}
+		}
+		return (short) ~(sum & 0xFFFF);
+	}
+
+	private interface Case {
+		long run(int i);
+	}
+
+	/**
+	 * @return the average ns per call of c in the best round
+	 */
+	private static double time(Case c, int iterations) {
+		for (int i = 0; i < iterations; i++) // warm up
+			sink += c.run(i);
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				sink += c.run(i);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return (double) best / iterations;
+	}
+
+	private static void benchChecksum() {
+		Random rand = new Random(640);
+		System.out.println("checksum per packet (ns)");
+		System.out.printf("%8s %12s %12s %12s %8s\n", "mtu", "short loop", "wide", "incremental", "speedup");
+		for (int mtu : MTUS) {
+			final int n = mtu - 20 - 8; // packet bytes within the udp payload
+			byte[] bytes = new byte[n];
+			rand.nextBytes(bytes);
+			final ByteBuffer buf = ByteBuffer.allocateDirect(n);
+			buf.put(bytes).clear();
+			final int iterations = 100_000_000 / n;
+
+			double old = time(i -> shortChecksum(buf, 0, n), iterations);
+			double wide = time(i -> Checksum.checksum(buf, 0, n), iterations);
+			final short ck = Checksum.checksum(buf, 0, n);
+			double inc = time(i -> Checksum.update(ck, (long) i, (long) i + 1), iterations);
+			System.out.printf("%8d %12.1f %12.1f %12.1f %7.1fx\n", mtu, old, wide, inc, old / wide);
+		}
+	}
+
+	/**
+	 * How the Sender kept its window before Window: on every ack the
+	 * segments left are shifted to the front of the arrays.
+	 */
+	private static int shiftAck(Object[] buffer, int[] seqs, int toFree) {
+		int ind = 0;
+		for (int i = toFree; i < buffer.length; i++) {
+			buffer[ind] = buffer[i];
+			seqs[ind] = seqs[i];
+			ind += 1;
+		}
+		while (ind < buffer.length) {
+			buffer[ind] = null;
+			seqs[ind] = -1;
+			ind += 1;
+		}
+		return seqs[0];
+	}
+
+	/**
+	 * The Sender's full window where each ack frees the oldest
+	 * segment and a new one is added in its place.
+	 */
+	private static void benchWindow() {
+		System.out.println("window ack + refill per segment (ns)");
+		System.out.printf("%8s %12s %12s %8s\n", "sws", "shifting", "ring", "speedup");
+		final Object seg = new Object();
+		for (int sws : WINDOWS) {
+			final int n = sws;
+			final Object[] buffer = new Object[n];
+			final int[] seqs = new int[n];
+			final int iterations = (int) Math.min(2_000_000, 400_000_000L / n);
+			double shifting = time(i -> {
+				int s = shiftAck(buffer, seqs, 1);
+				buffer[n - 1] = seg;
+				seqs[n - 1] = i;
+				return s;
+			}, iterations);
+
+			final Window<Object> window = new Window<>(n);
+			final int[] rseqs = new int[window.capacity()];
+			while (!window.isFull())
+				window.add(seg);
+			double ring = time(i -> {
+				int s = rseqs[window.slot(0)];
+				window.slide(1);
+				rseqs[window.add(seg)] = i;
+				return s;
+			}, iterations);
+			System.out.printf("%8d %12.1f %12.1f %7.1fx\n", n, shifting, ring, shifting / ring);
+		}
+	}
+
+	/**
+	 * What printPacket did for every packet before PacketTrace.
+	 */
+	private static void printLine(java.io.PrintStream out, TCPpacket p, boolean isSending) {
+		String msg = "";
+		if (isSending) msg += "snd ";
+		else msg += "rcv ";
+		msg += p.getTime();
+		if(p.isSyn()) msg += " S";
+		else msg += " -";
+		if(p.isAck()) msg += " A";
+		else msg += " -";
+		if(p.isFin()) msg += " F";
+		else msg += " -";
+		if(p.getDataLen() > 0) msg += " D ";
+		else msg += " - ";
+		msg += p.getSeq() + " " + p.getDataLen() + " " + p.getAckNum();
+		out.println(msg);
+	}
+
+	/**
+	 * Cost on the sending thread of logging a packet, the output
+	 * itself is thrown away.
+	 */
+	private static void benchTrace() throws java.io.IOException {
+		System.out.println("packet log per packet (ns)");
+		System.out.printf("%12s %12s %8s\n", "println", "trace", "speedup");
+		final TCPpacket p = new TCPpacket();
+		p.setAck();
+		p.setSeq(1);
+		p.setAckNum(1);
+		p.setData(new byte[1448]);
+		p.setCurrentTime();
+		final java.io.PrintStream out = new java.io.PrintStream(java.io.OutputStream.nullOutputStream());
+		final int iterations = 1_000_000;
+		double old = time(i -> {
+			printLine(out, p, true);
+			return i;
+		}, iterations);
+		java.io.File f = java.io.File.createTempFile("bench", ".trace");
+		f.deleteOnExit();
+		final PacketTrace trace = PacketTrace.binary(f.getPath());
+		double traced = time(i -> {
+			trace.record(true, p);
+			return i;
+		}, iterations);
+		trace.close();
+		System.out.printf("%12.1f %12.1f %7.1fx\n", old, traced, old / traced);
+	}
+
+	public static void main(String[] args) throws java.io.IOException {
+		benchChecksum();
+		benchWindow();
+		benchTrace();
+		if (sink == 42)
+			System.out.println();
+	}
+}
@@ -0,0 +1,83 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * What a Receiver has of a resumable transfer, kept next to the file
+ * it writes (as name.resume) so that a later transfer of the same file
+ * only needs the rest. The file is identified by the length and
+ * modified time the sender gave in its SYN, its bytes went to base on
+ * in the file written and the first done of them are on disk. It is
+ * saved to a temporary file that is then moved over the old one, so a
+ * crash leaves either checkpoint whole. The data is not forced to the
+ * disk first: it covers a lost connection or a killed process, not a
+ * lost machine.
+ */
+public class Checkpoint {
+
+	private static final int MAGIC = 0x54435052;	// TCPR
+
+	public final long length;
+	public final long modified;
+	public final long base;
+	public long done;
+
+	public Checkpoint(long length, long modified, long base, long done) {
+		this.length = length;
+		this.modified = modified;
+		this.base = base;
+		this.done = done;
+	}
+
+	/**
+	 * @return the checkpoint kept for filename
+	 */
+	public static Path pathFor(String filename) {
+		return Paths.get(filename + ".resume");
+	}
+
+	/**
+	 * @return the checkpoint saved at path, or null if there is none
+	 * (or it is not one)
+	 */
+	public static Checkpoint load(Path path) {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+			if (in.readInt() != MAGIC)
+				return null;
+			return new Checkpoint(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			System.err.println("Ignoring checkpoint " + path + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	public void save(Path path) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(36);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(MAGIC);
+			out.writeLong(length);
+			out.writeLong(modified);
+			out.writeLong(base);
+			out.writeLong(done);
+		}
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.write(tmp, bytes.toByteArray());
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return true if this is a checkpoint of the file with that
+	 * length and modified time
+	 */
+	public boolean matches(long length, long modified) {
+		return this.length == length && this.modified == modified;
+	}
+}
@@ -0,0 +1,112 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The internet checksum (RFC 1071), the 1's complement of the
+ * 1's complement sum of the buffer taken as 2 byte big endian words.
+ *
+ * The sum is taken 8 bytes at a time: each long is split into
+ * its two unsigned 32 bit halves which are added into 64 bit
+ * accumulators, so no carry can be lost until more than 2^31 longs
+ * have been added. The carries are folded back into 16 bits once
+ * at the end. Since 2^16 = 1 (mod 2^16 - 1) folding a sum of wider
+ * words gives the same result as adding each short with an
+ * end around carry.
+ *
+ * Buffers are read with absolute gets and are expected to be big
+ * endian (the ByteBuffer default). An odd trailing byte is summed
+ * as if it were padded with a zero byte.
+ *
+ * @see https://www.rfc-editor.org/rfc/rfc1071
+ * @see https://www.rfc-editor.org/rfc/rfc1624
+ */
+public final class Checksum {
+
+	private Checksum() {
+	}
+
+	/**
+	 * The unfolded sum of the bytes in [from, to) of buf,
+	 * combine partial sums with + and finish with fold(long).
+	 */
+	public static long sum(ByteBuffer buf, int from, int to) {
+		long sum = 0, sum2 = 0; // two accumulators so the adds do not wait on each other
+		int i = from;
+		for (; i + 16 <= to; i += 16) {
+			long w = buf.getLong(i);
+			long v = buf.getLong(i + 8);
+			sum += (w >>> 32) + (w & 0xFFFFFFFFL);
+			sum2 += (v >>> 32) + (v & 0xFFFFFFFFL);
+		}
+		sum += sum2;
+		if (i + 8 <= to) {
+			long w = buf.getLong(i);
+			sum += (w >>> 32) + (w & 0xFFFFFFFFL);
+			i += 8;
+		}
+		if (i + 4 <= to) {
+			sum += buf.getInt(i) & 0xFFFFFFFFL;
+			i += 4;
+		}
+		if (i + 2 <= to) {
+			sum += buf.getShort(i) & 0xFFFF;
+			i += 2;
+		}
+		if (i < to)
+			sum += (buf.get(i) & 0xFF) << 8;
+		return sum;
+	}
+
+	/**
+	 * Folds the carries of sum back into the low 16 bits.
+	 */
+	public static int fold(long sum) {
+		while ((sum >>> 16) != 0)
+			sum = (sum & 0xFFFF) + (sum >>> 16);
+		return (int) sum;
+	}
+
+	public static short checksum(ByteBuffer buf, int from, int to) {
+		return (short) ~fold(sum(buf, from, to));
+	}
+
+	/**
+	 * A buffer that includes its own checksum sums to
+	 * 0xFFFF (negative zero) when nothing was corrupted.
+	 */
+	public static boolean verify(ByteBuffer buf, int from, int to) {
+		return fold(sum(buf, from, to)) == 0xFFFF;
+	}
+
+	/**
+	 * RFC 1624 (eqn. 3) incremental update: HC' = ~(~HC + ~m + m')
+	 * where m is replaced by m' and each is a 16 bit word.
+	 * Only the changed words are summed rather than the whole packet.
+	 */
+	public static short update(short checksum, short oldWord, short newWord) {
+		long sum = (~checksum & 0xFFFF) + (~oldWord & 0xFFFF) + (newWord & 0xFFFF);
+		return (short) ~fold(sum);
+	}
+
+	/**
+	 * Same as update(short, short, short) for a 4 byte field.
+	 */
+	public static short update(short checksum, int oldValue, int newValue) {
+		long sum = ~checksum & 0xFFFF;
+		sum += (~oldValue >>> 16) + (~oldValue & 0xFFFF);
+		sum += (newValue >>> 16) + (newValue & 0xFFFF);
+		return (short) ~fold(sum);
+	}
+
+	/**
+	 * Same as update(short, short, short) for an 8 byte field,
+	 * such as the timestamp of a packet being retransmitted.
+	 */
+	public static short update(short checksum, long oldValue, long newValue) {
+		long sum = ~checksum & 0xFFFF;
+		for (int shift = 0; shift < 64; shift += 16) {
+			sum += ~(oldValue >>> shift) & 0xFFFF;
+			sum += (newValue >>> shift) & 0xFFFF;
+		}
+		return (short) ~fold(sum);
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * Decides how many segments the Sender may have in flight. The
+ * Sender reports acks, losses and timeouts, and Transport.sendWindow()
+ * caps the window from the command line (-c) by window().
+ * Windows are counted in segments.
+ *
+ * @see NewReno
+ * @see Cubic
+ */
+public interface CongestionControl {
+
+	/**
+	 * @return the congestion window, at least 1
+	 */
+	int window();
+
+	int ssthresh();
+
+	/**
+	 * New data was cumulatively acked, during a recovery this is a
+	 * partial ack (it did not ack everything sent before the loss).
+	 *
+	 * @param acked segments freed by the ack
+	 * @param rtt the smoothed round trip time in ms
+	 */
+	void onAck(int acked, double rtt);
+
+	/**
+	 * A duplicate ack arrived during a recovery.
+	 */
+	void onDupAck();
+
+	/**
+	 * Three duplicate acks, a fast retransmit starts a recovery.
+	 *
+	 * @param inFlight segments in flight when the loss was detected
+	 */
+	void onLoss(int inFlight);
+
+	/**
+	 * Everything sent before the loss has been acked.
+	 */
+	void onRecoveryEnd();
+
+	void onTimeout(int inFlight);
+
+	/**
+	 * @param name newreno, cubic or fixed (no congestion control)
+	 * @param maxWindow the window from the command line
+	 * @return null for fixed
+	 */
+	static CongestionControl forName(String name, int maxWindow) {
+		switch (name) {
+			case "newreno":
+				return new NewReno(maxWindow);
+			case "cubic":
+				return new Cubic(maxWindow);
+			case "fixed":
+				return null;
+			default:
+				throw new IllegalArgumentException("Unknown congestion control: " + name);
+		}
+	}
+}
@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The Receiver's side of one connection of a ReceiverServer, driven
+ * by the datagrams from its peer instead of blocking reads:
+ *
+ * SYN_RCVD     SYN answered with SYN+ACK, waiting for the ACK (or data)
+ * ESTABLISHED  segments are held by seq and written in order
+ * LAST_ACK     FIN answered with FIN+ACK, waiting for the last ACK
+ * CLOSED       done, or given up after IDLE_TIMEOUT without a datagram
+ *
+ * A connection belongs to one ReceiverServer.Loop and is only touched
+ * by its thread. SACK is not offered in the SYN+ACK, senders fall back
+ * to plain cumulative acks. A sender that keeps to a receive window
+ * gets one in every ack, the whole window as segments are written as
+ * they arrive, and its empty window probes and keepalives are acked.
+ * A sender that probes for larger segments is offered up to
+ * MAX_SEGMENT, its probes are acked at once, and its segments may
+ * change size and overlap as it cuts the data again.
+ */
+public class Connection {
+
+	enum State { SYN_RCVD, ESTABLISHED, LAST_ACK, CLOSED }
+
+	private static final long IDLE_TIMEOUT = 30_000;	// ms
+	private static final long FIN_TIMEOUT = 200;	// ms between FIN+ACKs
+	private static final int FIN_TRIES = 16;
+
+	final SocketAddress peer;
+	private final ReceiverServer.Loop loop;
+	private final String filename;
+	private final int maxDataSize;
+	private final int sws;
+	private final TreeMap<Integer, TCPpacket> held = new TreeMap<>();	// segments beyond currentAck by seq
+	private int segmentMax;	// largest segment the sender may send
+	private final TCPpacket reply = new TCPpacket();
+	private State state = State.SYN_RCVD;
+	private FileChannel file;
+	private int currentAck = 1;	// data starts at seq 1
+	private int currentSeq = 0;
+	private long currentAckTimestamp;
+	private long lastHeard;	// ms
+	private long finSentAt;	// ms
+	private int finTries;
+	private long bytes;
+	private boolean windowPermitted;	// the sender takes a window in acks
+
+	Connection(ReceiverServer.Loop loop, SocketAddress peer, String filename, int maxDataSize, int sws) {
+		this.loop = loop;
+		this.peer = peer;
+		this.filename = filename;
+		this.maxDataSize = maxDataSize;
+		this.sws = sws;
+		this.segmentMax = maxDataSize;
+	}
+
+	/**
+	 * The output file of the connection from peer, the filename
+	 * given to the server with the peer's address appended.
+	 */
+	static String outputName(String filename, SocketAddress peer) {
+		InetSocketAddress a = (InetSocketAddress) peer;
+		return filename + "." + a.getHostString() + "_" + a.getPort();
+	}
+
+	State getState() {
+		return state;
+	}
+
+	/**
+	 * Moves the connection along with a datagram from its peer, p is
+	 * recycled or kept in the window.
+	 */
+	@SuppressWarnings("fallthrough")
+	void handle(TCPpacket p, long now) throws IOException {
+		lastHeard = now;
+		switch (state) {
+			case SYN_RCVD:
+				if (p.isSyn()) { // the first, or our SYN+ACK was lost
+					synAck(p);
+					break;
+				}
+				open();
+				if (p.getDataLen() == 0 && !p.isFin())
+					break; // the ACK of the SYN+ACK
+				// fall through, the ACK may be lost and this is already data
+			case ESTABLISHED:
+				if (p.isSyn()) {
+					synAck(p);
+					break;
+				}
+				if (p.isFin() && p.getSeq() == currentAck) {
+					finAck(p, now);
+					break;
+				}
+				if (p.getProbe() > 0) { // padding only, acked at once with its size
+					reply.setProbe(p.getProbe());
+					ack(currentAckTimestamp);
+					reply.setProbe(0);
+					break;
+				}
+				if (p.getDataLen() > 0) {
+					if (receive(p))
+						return; // kept in the window
+				}
+				ack(currentAckTimestamp); // a duplicate, or an empty window probe
+				break;
+			case LAST_ACK:
+				if (p.isFin()) // our FIN+ACK was lost
+					finAck(p, now);
+				else if (p.isAck())
+					close();
+				break;
+			case CLOSED:
+				break;
+		}
+		loop.recycle(p);
+	}
+
+	/**
+	 * Resends the FIN+ACK and gives up on quiet connections.
+	 */
+	void tick(long now) throws IOException {
+		if (state == State.CLOSED)
+			return;
+		if (now - lastHeard > IDLE_TIMEOUT) {
+			System.out.println("Connection " + peer + " timed out after " + bytes + " bytes");
+			close();
+			return;
+		}
+		if (state == State.LAST_ACK && now - finSentAt > FIN_TIMEOUT) {
+			if (++finTries > FIN_TRIES) {
+				close();
+				return;
+			}
+			loop.send(reply, peer);
+			finSentAt = now;
+		}
+	}
+
+	private void synAck(TCPpacket syn) {
+		reply.clearFlags();
+		reply.clearSack();
+		reply.setSyn();
+		reply.setAck();
+		reply.setSeq(0);
+		reply.setAckNum(syn.getSeq() + 1);
+		reply.setTime(syn.getTime());
+		if (syn.getMaxSegment() > 0) // the sender probes for larger segments
+			segmentMax = Math.max(maxDataSize, Math.min(syn.getMaxSegment(), Transport.MAX_SEGMENT));
+		reply.setMaxSegment(syn.getMaxSegment() > 0 ? segmentMax : 0);
+		windowPermitted = syn.getWindow() >= 0;
+		reply.setWindow(windowPermitted ? window() : -1);
+		currentSeq = 1;
+		loop.send(reply, peer);
+		reply.setMaxSegment(0); // only on the SYN+ACK
+	}
+
+	private void open() throws IOException {
+		file = FileChannel.open(Paths.get(outputName(filename, peer)),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		state = State.ESTABLISHED;
+	}
+
+	/**
+	 * Holds p until the bytes before it have arrived and writes out
+	 * what became contiguous. Segments may differ in size and overlap,
+	 * only the bytes past currentAck are written.
+	 *
+	 * @return false if p was outside of the window or a duplicate
+	 */
+	private boolean receive(TCPpacket p) throws IOException {
+		final int end = p.getSeq() + p.getDataLen();
+		if (end <= currentAck || p.getSeq() - currentAck >= segmentMax * sws) {
+			loop.metrics.outOfSequence();
+			return false;
+		}
+		if (p.getSeq() > currentAck) {
+			TCPpacket old = held.get(p.getSeq());
+			if (old != null && old.getDataLen() >= p.getDataLen())
+				return false;
+			held.put(p.getSeq(), p);
+			loop.recycle(old);
+			ack(currentAckTimestamp);
+			return true;
+		}
+		write(p);
+		loop.recycle(p);
+		Map.Entry<Integer, TCPpacket> e;
+		while ((e = held.firstEntry()) != null && e.getKey() <= currentAck) {
+			held.pollFirstEntry();
+			if (e.getKey() + e.getValue().getDataLen() > currentAck)
+				write(e.getValue());
+			loop.recycle(e.getValue());
+		}
+		ack(currentAckTimestamp);
+		return true;
+	}
+
+	/**
+	 * Writes the bytes of p past currentAck and moves it past them.
+	 */
+	private void write(TCPpacket p) throws IOException {
+		final int off = currentAck - p.getSeq();
+		final int len = p.getDataLen() - off;
+		loop.write(file, p.getData(), off, len);
+		currentAck += len;
+		bytes += len;
+		loop.metrics.addData(len);
+		loop.metrics.delivered(len);
+		currentAckTimestamp = p.getTime();
+	}
+
+	private void ack(long time) {
+		reply.clearFlags();
+		reply.clearSack();
+		reply.setAck();
+		reply.setSeq(currentSeq);
+		reply.setAckNum(currentAck);
+		reply.setTime(time);
+		reply.setWindow(windowPermitted ? window() : -1);
+		loop.send(reply, peer);
+	}
+
+	/**
+	 * Segments are written by the loop as they come in order, so there
+	 * is always room for the whole window.
+	 */
+	private int window() {
+		return segmentMax * sws;
+	}
+
+	private void finAck(TCPpacket fin, long now) throws IOException {
+		if (state == State.ESTABLISHED) {
+			file.close();
+			state = State.LAST_ACK;
+			currentSeq++;
+		}
+		reply.clearFlags();
+		reply.clearSack();
+		reply.setAck();
+		reply.setFin();
+		reply.setSeq(currentSeq - 1);
+		reply.setAckNum(fin.getSeq() + 1);
+		reply.setTime(fin.getTime());
+		loop.send(reply, peer);
+		finSentAt = now;
+	}
+
+	/**
+	 * Frees the window and file, the loop drops closed connections.
+	 */
+	void close() throws IOException {
+		if (state == State.CLOSED)
+			return;
+		if (state == State.LAST_ACK)
+			System.out.println("Connection " + peer + " done: " + bytes + " bytes to " + outputName(filename, peer));
+		state = State.CLOSED;
+		for (TCPpacket p : held.values())
+			loop.recycle(p);
+		held.clear();
+		if (file != null)
+			file.close();
+	}
+}
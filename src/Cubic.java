@@ -0,0 +1,56 @@
+/**
+ * CUBIC (RFC 8312): after a loss the window grows as a cubic
+ * function of the time since the loss, flattening out around the
+ * window where the loss happened. Slow start and fast recovery are
+ * the same as NewReno.
+ */
+public class Cubic extends NewReno {
+	private static final double C = 0.4;
+	private static final double BETA = 0.7;
+
+	private double wMax;	// window before the last reduction
+	private double k;	// seconds to grow back to wMax
+	private double wEst;	// what Reno would have grown to (tcp friendly region)
+	private long epochStart;	// ms, 0 until the first ack after a reduction
+
+	public Cubic(int maxWindow) {
+		super(maxWindow);
+	}
+
+	@Override
+	protected void avoid(int acked, double rtt) {
+		long now = System.currentTimeMillis();
+		if (epochStart == 0) {
+			epochStart = now;
+			if (cwnd < wMax) {
+				k = Math.cbrt((wMax - cwnd) / C);
+			} else {
+				k = 0;
+				wMax = cwnd;
+			}
+			wEst = cwnd;
+		}
+		double t = (now - epochStart + rtt) / 1000.0;
+		double target = C * Math.pow(t - k, 3) + wMax;
+		if (target > cwnd)
+			cwnd += (target - cwnd) / cwnd * acked;
+		else
+			cwnd += 0.01 * acked / cwnd;
+
+		wEst += 3 * (1 - BETA) / (1 + BETA) * acked / cwnd;
+		if (wEst > cwnd)
+			cwnd = wEst;
+	}
+
+	@Override
+	protected double decrease(int inFlight) {
+		// fast convergence, release bandwidth if the last loss came sooner
+		wMax = cwnd < wMax ? cwnd * (1 + BETA) / 2 : cwnd;
+		epochStart = 0;
+		return Math.max(cwnd * BETA, 2);
+	}
+
+	public String toString() {
+		return "CUBIC";
+	}
+}
@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Rebuilds a file from the stream of a DeltaEncoder as it arrives, in
+ * whatever pieces the segments cut it into. Literal bytes are queued
+ * to the writer as they are, the blocks copied from the basis are
+ * queued as copies the writer does with transferTo, so the Receiver
+ * never reads the basis itself. Once the writer is closed verify
+ * checks the file against the digests at the end of the stream.
+ */
+public class DeltaDecoder {
+
+	private final WriteBehind writer;
+	private final FileChannel basis;
+	private final long basisLength;
+	private final int block;
+	private final int maxWrite;	// bytes queued to the writer at once
+	private ByteBuffer field = ByteBuffer.allocate(9);	// the header being read
+	private byte op;	// of the header being read, 0 for the next op
+	private long literalLeft;	// bytes of the literal being read
+	private long length = -1;	// of the file, from the end record
+	private byte[] digests;	// from the end record, null until it is read
+	private long output;	// bytes of the file queued
+	private long copied;	// of them from the basis
+
+	/**
+	 * @param maxWrite the most bytes queued to writer at once
+	 */
+	public DeltaDecoder(WriteBehind writer, FileChannel basis, long basisLength, int block, int maxWrite) {
+		this.writer = writer;
+		this.basis = basis;
+		this.basisLength = basisLength;
+		this.block = block;
+		this.maxWrite = maxWrite;
+		field.limit(1);
+	}
+
+	/**
+	 * Takes the next len bytes of the stream.
+	 *
+	 * @throws IOException if they are not a delta of the basis
+	 */
+	public void accept(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (literalLeft > 0) {
+				final int k = (int) Math.min(Math.min(len, literalLeft), maxWrite);
+				writer.write(b, off, k, -1);
+				literalLeft -= k;
+				output += k;
+				off += k;
+				len -= k;
+				continue;
+			}
+			if (digests != null)
+				throw new IOException("Data after the end of the delta");
+			final int k = Math.min(len, field.remaining());
+			field.put(b, off, k);
+			off += k;
+			len -= k;
+			if (!field.hasRemaining())
+				parse();
+		}
+	}
+
+	/**
+	 * Acts on the header just read: the op byte, or what follows it.
+	 */
+	private void parse() throws IOException {
+		field.flip();
+		if (op == 0) {
+			op = field.get();
+			if (op == DeltaEncoder.LITERAL)
+				expect(4);
+			else if (op == DeltaEncoder.COPY || op == DeltaEncoder.END)
+				expect(8);
+			else
+				throw new IOException("Bad delta op " + op);
+			return;
+		}
+		if (op == DeltaEncoder.LITERAL) {
+			literalLeft = field.getInt() & 0xFFFFFFFFL;
+		} else if (op == DeltaEncoder.COPY) {
+			final long first = field.getInt() & 0xFFFFFFFFL;
+			final long count = field.getInt() & 0xFFFFFFFFL;
+			final long start = first * block;
+			if (count == 0 || start + (count - 1) * block >= basisLength)
+				throw new IOException("Copy of blocks " + first + "+" + count + " past the basis");
+			final long n = Math.min(count * block, basisLength - start);
+			writer.copy(basis, start, n);
+			output += n;
+			copied += n;
+		} else if (length < 0) { // end record, the length comes first
+			length = field.getLong();
+			if (length < 0)
+				throw new IOException("Bad delta length " + length);
+			final long n = (length + DeltaSignature.CHUNK - 1) / DeltaSignature.CHUNK * DeltaSignature.DIGEST;
+			if (n > 0) {
+				field = ByteBuffer.allocate((int) n);
+				return;
+			}
+			digests = new byte[0];
+			return;
+		} else {
+			digests = Arrays.copyOf(field.array(), field.limit());
+			return;
+		}
+		op = 0;
+		expect(1);
+	}
+
+	private void expect(int n) {
+		field.clear().limit(n);
+	}
+
+	/**
+	 * @return true once the end of the stream was read
+	 */
+	public boolean isComplete() {
+		return digests != null;
+	}
+
+	/**
+	 * @return bytes of the file so far
+	 */
+	public long getLength() {
+		return output;
+	}
+
+	/**
+	 * @return bytes of the file copied from the basis
+	 */
+	public long getCopiedBytes() {
+		return copied;
+	}
+
+	/**
+	 * Checks the file written, whole and closed, against the digests
+	 * the sender computed of its own.
+	 */
+	public boolean verify(FileChannel file) throws IOException {
+		return isComplete() && output == length && file.size() == length
+				&& Arrays.equals(DeltaSignature.digests(file, length), digests);
+	}
+}
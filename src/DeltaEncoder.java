@@ -0,0 +1,256 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A file as a delta against the receiver's copy of it, read as a stream
+ * the Sender sends in place of the file. The file is split in regions
+ * that are matched against the DeltaSignature in parallel, each one
+ * with a rolling checksum that slides a byte at a time until a window
+ * matches a block. Blocks do not match across a region boundary, which
+ * costs at most a block of literal bytes per region, the boundaries are
+ * on block boundaries so a file that kept its blocks in place loses
+ * nothing. The stream is:
+ * LITERAL [1] | length [4] | the bytes, COPY [1] | block [4] | count [4]
+ * for that many blocks of the basis from block on, and last of all
+ * END [1] | length [8] | the DeltaSignature.digests of the file.
+ */
+public class DeltaEncoder extends InputStream {
+
+	public static final byte LITERAL = 1;
+	public static final byte COPY = 2;
+	public static final byte END = 3;
+	private static final long MAX_REGION = 1 << 30;	// bytes mapped at once
+	private static final int MIN_BLOCKS = 256;	// blocks per region, fewer are not worth a task
+
+	private final FileChannel file;
+	private final long length;
+	private final Ops ops;
+	private final byte[] digests;
+	private final ByteBuffer header;
+	private int op;	// next one to put in the stream
+	private long literalAt;	// file offset of the literal bytes being read
+	private long literalLeft;
+	private boolean ended;	// the end record was put in the header
+
+	private DeltaEncoder(FileChannel file, long length, Ops ops, byte[] digests) {
+		this.file = file;
+		this.length = length;
+		this.ops = ops;
+		this.digests = digests;
+		header = ByteBuffer.allocate(9 + digests.length);
+		header.flip();
+	}
+
+	/**
+	 * Matches path against the signature of a basis of basisLength bytes
+	 * in blocks of block bytes.
+	 */
+	public static DeltaEncoder encode(Path path, byte[] signature, long basisLength, int block) throws IOException {
+		FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			final long length = file.size();
+			final DeltaSignature.Index index = new DeltaSignature.Index(signature, basisLength, block);
+			final int cores = Runtime.getRuntime().availableProcessors();
+			final int n = (int) Math.max((length + MAX_REGION - 1) / MAX_REGION,
+					Math.max(1, Math.min(4L * cores, length / ((long) block * MIN_BLOCKS))));
+			Ops[] regions;
+			try {
+				regions = IntStream.range(0, n).parallel()
+						.mapToObj(r -> match(file, boundary(r, n, length, block), boundary(r + 1, n, length, block), index, block))
+						.toArray(Ops[]::new);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			Ops ops = new Ops();
+			for (Ops r : regions)
+				ops.addAll(r);
+			return new DeltaEncoder(file, length, ops, DeltaSignature.digests(file, length));
+		} catch (IOException | RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return where region r of n starts, on a block boundary
+	 */
+	private static long boundary(int r, int n, long length, int block) {
+		return r == n ? length : length * r / n / block * block;
+	}
+
+	/**
+	 * Matches the bytes of file in [start, end).
+	 */
+	private static Ops match(FileChannel file, long start, long end, DeltaSignature.Index index, int block) {
+		final Ops ops = new Ops();
+		final int len = (int) (end - start);
+		final MappedByteBuffer buf;
+		try {
+			buf = file.map(FileChannel.MapMode.READ_ONLY, start, len);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		final MessageDigest md5 = DeltaSignature.md5();
+		int literal = 0;	// start of the bytes not matched yet
+		int pos = 0;
+		int weak = len >= block ? DeltaSignature.weak(buf, 0, block) : 0;
+		while (pos + block <= len) {
+			int b = index.first(weak);
+			if (b >= 0) {
+				final long strong = DeltaSignature.strong(md5, buf, pos, block);
+				while (b >= 0 && index.strongOf(b) != strong)
+					b = index.next(b, weak);
+			}
+			if (b >= 0) {
+				ops.literal(start + literal, pos - literal);
+				ops.copy(b, 1);
+				pos += block;
+				literal = pos;
+				if (pos + block <= len)
+					weak = DeltaSignature.weak(buf, pos, block);
+				continue;
+			}
+			if (pos + block < len)
+				weak = DeltaSignature.roll(weak, block, buf.get(pos) & 0xFF, buf.get(pos + block) & 0xFF);
+			pos++;
+		}
+		ops.literal(start + literal, len - literal);
+		return ops;
+	}
+
+	/**
+	 * @return bytes of the file that go as they are
+	 */
+	public long getLiteralBytes() {
+		return ops.literal;
+	}
+
+	/**
+	 * @return bytes of the file the receiver copies from its own
+	 */
+	public long getCopiedBytes() {
+		return length - ops.literal;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = 0;
+		while (n < len) {
+			if (header.hasRemaining()) {
+				int k = Math.min(len - n, header.remaining());
+				header.get(b, off + n, k);
+				n += k;
+			} else if (literalLeft > 0) {
+				int k = (int) Math.min(len - n, literalLeft);
+				ByteBuffer dst = ByteBuffer.wrap(b, off + n, k);
+				while (dst.hasRemaining()) {
+					if (file.read(dst, literalAt + k - dst.remaining()) < 0)
+						throw new IOException("File shrank while it was sent");
+				}
+				literalAt += k;
+				literalLeft -= k;
+				n += k;
+			} else if (!nextOp()) {
+				break;
+			}
+		}
+		return n == 0 && len > 0 ? -1 : n;
+	}
+
+	/**
+	 * Puts the header of the next op (or the end) in the header buffer.
+	 *
+	 * @return false once the end was read
+	 */
+	private boolean nextOp() {
+		header.clear();
+		if (op < ops.size) {
+			final long a = ops.ops[2 * op], b = ops.ops[2 * op + 1];
+			op++;
+			if (a >= 0) {
+				header.put(LITERAL).putInt((int) b);
+				literalAt = a;
+				literalLeft = b;
+			} else {
+				header.put(COPY).putInt((int) (-1 - a)).putInt((int) b);
+			}
+		} else if (!ended) {
+			header.put(END).putLong(length).put(digests);
+			ended = true;
+		}
+		header.flip();
+		return header.hasRemaining();
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Ops as pairs of longs, a literal is its file offset and length and
+	 * a copy is -1 - its first block and the count. Adjacent literals and
+	 * copies of consecutive blocks are merged as they are added.
+	 */
+	private static final class Ops {
+		long[] ops = new long[16];
+		int size;
+		long literal;	// bytes
+
+		void literal(long offset, long len) {
+			if (len == 0)
+				return;
+			literal += len;
+			final int last = 2 * (size - 1);
+			if (size > 0 && ops[last] >= 0 && ops[last] + ops[last + 1] == offset
+					&& ops[last + 1] + len <= Integer.MAX_VALUE) {
+				ops[last + 1] += len;
+				return;
+			}
+			add(offset, len);
+		}
+
+		void copy(int first, long count) {
+			final int last = 2 * (size - 1);
+			if (size > 0 && ops[last] < 0 && -1 - ops[last] + ops[last + 1] == first
+					&& ops[last + 1] + count <= Integer.MAX_VALUE) {
+				ops[last + 1] += count;
+				return;
+			}
+			add(-1 - first, count);
+		}
+
+		private void add(long a, long b) {
+			if (2 * size == ops.length)
+				ops = Arrays.copyOf(ops, 2 * ops.length);
+			ops[2 * size] = a;
+			ops[2 * size + 1] = b;
+			size++;
+		}
+
+		void addAll(Ops o) {
+			for (int i = 0; i < o.size; i++) {
+				final long a = o.ops[2 * i], b = o.ops[2 * i + 1];
+				if (a >= 0)
+					literal(a, b);
+				else
+					copy((int) (-1 - a), b);
+			}
+		}
+	}
+}
@@ -0,0 +1,214 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * The block signature of the file a Receiver already has, for a delta
+ * transfer (as rsync does it). Each block of the basis has a weak
+ * rolling checksum [4] and the first 8 bytes of its MD5 [8], in block
+ * order. The blocks are hashed in parallel. A sender looks up the weak
+ * sum of every window of its own file in an index and checks the
+ * strong hash of the few that match. The file that comes out is checked
+ * against MD5s of its CHUNK byte pieces, also hashed in parallel.
+ */
+public final class DeltaSignature {
+
+	public static final int ENTRY = 12;	// bytes per block
+	public static final int DIGEST = 16;	// bytes of an MD5
+	public static final long CHUNK = 64 << 20;	// bytes per digest of the whole file
+	private static final int READ = 1 << 20;	// bytes read at once for a digest
+	private static final int MIN_BLOCK = 1024;
+	private static final int MAX_BLOCK = 1 << 17;
+
+	private DeltaSignature() {
+	}
+
+	/**
+	 * About the square root of the length, which keeps the signature
+	 * and the literal bytes around each change both small.
+	 */
+	public static int blockSize(long length) {
+		int b = ((int) Math.sqrt(length) + 63) & ~63;
+		return Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, b));
+	}
+
+	public static long blocks(long length, int block) {
+		return (length + block - 1) / block;
+	}
+
+	/**
+	 * @return bytes of the signature of length bytes in blocks of block
+	 */
+	public static long length(long length, int block) {
+		return blocks(length, block) * ENTRY;
+	}
+
+	/**
+	 * The rsync rolling checksum of len bytes of b from off: the sum of
+	 * the bytes and the sum of those sums, 16 bits each.
+	 */
+	public static int weak(ByteBuffer b, int off, int len) {
+		int s1 = 0, s2 = 0;
+		for (int i = 0; i < len; i++) {
+			s1 += b.get(off + i) & 0xFF;
+			s2 += s1;
+		}
+		return (s1 & 0xFFFF) | (s2 << 16);
+	}
+
+	/**
+	 * Slides the window of a weak sum over len bytes one byte on, out
+	 * leaves it and in joins it.
+	 */
+	public static int roll(int weak, int len, int out, int in) {
+		int s1 = weak & 0xFFFF;
+		int s2 = weak >>> 16;
+		s1 = (s1 - out + in) & 0xFFFF;
+		s2 = (s2 - len * out + s1) & 0xFFFF;
+		return s1 | (s2 << 16);
+	}
+
+	/**
+	 * @return the first 8 bytes of the MD5 of len bytes of b from off
+	 */
+	public static long strong(MessageDigest md5, ByteBuffer b, int off, int len) {
+		md5.reset();
+		md5.update(b.duplicate().position(off).limit(off + len));
+		return ByteBuffer.wrap(md5.digest()).getLong();
+	}
+
+	public static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every JDK has it
+		}
+	}
+
+	/**
+	 * Hashes the first length bytes of basis in blocks of block,
+	 * spread over the common pool.
+	 */
+	public static byte[] compute(FileChannel basis, long length, int block) {
+		final long n = blocks(length, block);
+		if (n * ENTRY > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(length + " bytes need a larger block than " + block);
+		final byte[] sig = new byte[(int) (n * ENTRY)];
+		final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(block));
+		final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(DeltaSignature::md5);
+		IntStream.range(0, (int) n).parallel().forEach(i -> {
+			ByteBuffer buf = buffers.get();
+			buf.clear().limit((int) Math.min(block, length - (long) i * block));
+			try {
+				while (buf.hasRemaining())
+					if (basis.read(buf, (long) i * block + buf.position()) < 0)
+						throw new IOException("Basis shrank while it was hashed");
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			ByteBuffer entry = ByteBuffer.wrap(sig, i * ENTRY, ENTRY);
+			entry.putInt(weak(buf, 0, buf.limit()));
+			entry.putLong(strong(digests.get(), buf, 0, buf.limit()));
+		});
+		return sig;
+	}
+
+	/**
+	 * @return the MD5s of the first length bytes of file in pieces of
+	 * CHUNK bytes, one after the other, hashed in parallel
+	 */
+	public static byte[] digests(FileChannel file, long length) throws IOException {
+		final int n = (int) ((length + CHUNK - 1) / CHUNK);
+		final byte[] out = new byte[n * DIGEST];
+		final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ));
+		try {
+			IntStream.range(0, n).parallel().forEach(c -> {
+				MessageDigest md5 = md5();
+				ByteBuffer buf = buffers.get();
+				long pos = c * CHUNK;
+				final long end = Math.min(length, pos + CHUNK);
+				try {
+					while (pos < end) {
+						buf.clear().limit((int) Math.min(READ, end - pos));
+						int r = file.read(buf, pos);
+						if (r < 0)
+							throw new IOException("File ends at " + pos + " of " + length);
+						pos += r;
+						md5.update(buf.flip());
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				System.arraycopy(md5.digest(), 0, out, c * DIGEST, DIGEST);
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return out;
+	}
+
+	/**
+	 * The whole blocks of a signature by their weak sum, an open hash
+	 * table of chains of block numbers, read by any number of threads.
+	 */
+	public static final class Index {
+		private final ByteBuffer sig;
+		private final int[] heads;	// first block of each bucket, -1 for none
+		private final int[] next;	// next block in the same bucket
+		private final int mask;
+
+		/**
+		 * @param length of the basis, a short last block is left out
+		 */
+		public Index(byte[] sig, long length, int block) {
+			this.sig = ByteBuffer.wrap(sig);
+			final int n = (int) (length / block);
+			heads = new int[Integer.highestOneBit(Math.max(1, 2 * n - 1)) << 1];
+			mask = heads.length - 1;
+			Arrays.fill(heads, -1);
+			next = new int[n];
+			for (int i = n - 1; i >= 0; i--) {
+				int h = bucket(weakOf(i));
+				next[i] = heads[h];
+				heads[h] = i;
+			}
+		}
+
+		private int bucket(int weak) {
+			return (weak ^ (weak >>> 15)) * 0x9E3779B1 >>> 16 & mask;
+		}
+
+		public int weakOf(int block) {
+			return sig.getInt(block * ENTRY);
+		}
+
+		public long strongOf(int block) {
+			return sig.getLong(block * ENTRY + 4);
+		}
+
+		/**
+		 * @return the first block with that weak sum, -1 for none
+		 */
+		public int first(int weak) {
+			return skip(heads[bucket(weak)], weak);
+		}
+
+		/**
+		 * @return the next block after block with the same weak sum, -1 for none
+		 */
+		public int next(int block, int weak) {
+			return skip(next[block], weak);
+		}
+
+		private int skip(int b, int weak) {
+			while (b >= 0 && weakOf(b) != weak)
+				b = next[b];
+			return b;
+		}
+	}
+}
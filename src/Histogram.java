@@ -0,0 +1,82 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A log-linear histogram of non negative longs in the style of
+ * HdrHistogram: values below 2^SUB_BITS get a bucket each, above that
+ * every power of 2 is split into 2^(SUB_BITS - 1) buckets, so a value
+ * is off by less than 1 / 2^(SUB_BITS - 1) (under 2%) of itself.
+ * The whole long range takes a few thousand buckets and recording is
+ * a couple of atomic adds, safe from any number of threads.
+ */
+public class Histogram {
+	private static final int SUB_BITS = 7;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int HALF = SUB >> 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	static int index(long value) {
+		if (value < SUB)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+		return SUB + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	/**
+	 * The largest value that falls in bucket i.
+	 */
+	static long highest(int i) {
+		if (i < SUB)
+			return i;
+		int shift = (i - SUB) / HALF + 1;
+		long low = (long) ((i - SUB) % HALF + HALF) << shift;
+		return low + (1L << shift) - 1;
+	}
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		if (value > max.get())
+			max.accumulateAndGet(value, Math::max);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @param percentile in [0, 100]
+	 * @return a value at least as large as that fraction of the recorded
+	 * values, within the precision of the buckets, or 0 when empty
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.sum();
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highest(i), getMax());
+		}
+		return getMax();
+	}
+}
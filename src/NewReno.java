@@ -0,0 +1,85 @@
+/**
+ * Slow start, congestion avoidance and fast recovery with the
+ * NewReno partial ack handling (RFC 5681, RFC 6582).
+ */
+public class NewReno implements CongestionControl {
+	protected static final int INITIAL_WINDOW = 4; // segments (RFC 3390)
+
+	protected final int maxWindow;
+	protected double cwnd = INITIAL_WINDOW;
+	protected double ssthresh;
+	protected boolean inRecovery;
+
+	public NewReno(int maxWindow) {
+		this.maxWindow = maxWindow;
+		this.ssthresh = maxWindow; // as high as the window can be
+	}
+
+	@Override
+	public int window() {
+		return (int) Math.max(1, Math.min(cwnd, maxWindow));
+	}
+
+	@Override
+	public int ssthresh() {
+		return (int) ssthresh;
+	}
+
+	@Override
+	public void onAck(int acked, double rtt) {
+		if (inRecovery) {
+			// deflate by what was acked, add back the one that left (RFC 6582)
+			cwnd = Math.max(cwnd - acked + 1, 1);
+			return;
+		}
+		if (cwnd < ssthresh)
+			cwnd += acked; // slow start
+		else
+			avoid(acked, rtt);
+		cwnd = Math.min(cwnd, maxWindow); // the window can not be used beyond -c anyway
+	}
+
+	/**
+	 * Congestion avoidance, about one segment per round trip.
+	 */
+	protected void avoid(int acked, double rtt) {
+		cwnd += (double) acked / cwnd;
+	}
+
+	/**
+	 * @return the new ssthresh after a loss
+	 */
+	protected double decrease(int inFlight) {
+		return Math.max(inFlight / 2.0, 2);
+	}
+
+	@Override
+	public void onDupAck() {
+		if (inRecovery)
+			cwnd += 1; // another segment left the network
+	}
+
+	@Override
+	public void onLoss(int inFlight) {
+		ssthresh = decrease(inFlight);
+		cwnd = ssthresh + 3;
+		inRecovery = true;
+	}
+
+	@Override
+	public void onRecoveryEnd() {
+		cwnd = ssthresh;
+		inRecovery = false;
+	}
+
+	@Override
+	public void onTimeout(int inFlight) {
+		ssthresh = decrease(inFlight);
+		cwnd = 1;
+		inRecovery = false;
+	}
+
+	public String toString() {
+		return "NewReno";
+	}
+}
@@ -0,0 +1,236 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every packet sent and received as a fixed size event
+ * (direction, flags, time, seq, len, ack) in a preallocated ring,
+ * a background thread drains the ring to the sink: the snd/rcv text
+ * printPacket used to print, or a binary file that is turned into the
+ * same text offline with java PacketTrace <file>.
+ *
+ * The ring is a bounded lock-free queue (Vyukov), each slot has a
+ * sequence number saying whether it is free for the producer claiming
+ * that position or holds an event for the drain thread. Recording
+ * does not allocate or lock, it only waits when the drain thread is
+ * a whole ring behind.
+ */
+public class PacketTrace implements Closeable {
+
+	private static final int MAGIC = 0x54524331; // "TRC1", start of a binary trace
+	private static final int CAPACITY = 1 << 16; // events
+	private static final int EVENT_BYTES = 24; // in a binary trace
+	private static final int SND = 1, SYN = 2, ACK = 4, FIN = 8;
+
+	private final long[] events = new long[CAPACITY * 3]; // time, seq << 32 | len, ack << 32 | kind
+	private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+	private final AtomicLong tail = new AtomicLong(); // next position to claim
+	private long head; // next position to drain, drain thread only
+	private final Sink sink;
+	private final Thread drainer;
+	private final Thread hook;
+	private volatile boolean closed;
+
+	private interface Sink {
+		void write(int kind, long time, int seq, int len, int ack) throws IOException;
+
+		void close() throws IOException;
+	}
+
+	private PacketTrace(Sink sink) {
+		this.sink = sink;
+		for (int i = 0; i < CAPACITY; i++)
+			sequences.set(i, i);
+		drainer = new Thread(this::drain, "trace");
+		drainer.setDaemon(true);
+		drainer.start();
+		// events recorded before a System.exit are still written
+		hook = new Thread(this::close);
+		Runtime.getRuntime().addShutdownHook(hook);
+	}
+
+	/**
+	 * Prints each event as a line of text to out.
+	 */
+	public static PacketTrace text(PrintStream out) {
+		return new PacketTrace(new Sink() {
+			private final StringBuilder line = new StringBuilder(64);
+
+			public void write(int kind, long time, int seq, int len, int ack) {
+				line.setLength(0);
+				out.append(format(line, kind, time, seq, len, ack)).append('\n');
+			}
+
+			public void close() {
+				out.flush();
+			}
+		});
+	}
+
+	/**
+	 * Writes each event as 24 bytes to the file at path.
+	 */
+	public static PacketTrace binary(String path) throws IOException {
+		final FileChannel out = FileChannel.open(Paths.get(path),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+		buf.putInt(MAGIC);
+		return new PacketTrace(new Sink() {
+			public void write(int kind, long time, int seq, int len, int ack) throws IOException {
+				if (buf.remaining() < EVENT_BYTES)
+					flush();
+				buf.putLong(time).putInt(seq).putInt(len).putInt(ack).putInt(kind);
+			}
+
+			private void flush() throws IOException {
+				buf.flip();
+				while (buf.hasRemaining())
+					out.write(buf);
+				buf.clear();
+			}
+
+			public void close() throws IOException {
+				flush();
+				out.close();
+			}
+		});
+	}
+
+	/**
+	 * Safe to call from any thread.
+	 */
+	public void record(boolean isSending, TCPpacket p) {
+		int kind = (isSending ? SND : 0) | (p.isSyn() ? SYN : 0) | (p.isAck() ? ACK : 0) | (p.isFin() ? FIN : 0);
+		record(kind, p.getTime(), p.getSeq(), p.getDataLen(), p.getAckNum());
+	}
+
+	private void record(int kind, long time, int seq, int len, int ack) {
+		long pos;
+		int slot;
+		for (;;) {
+			pos = tail.get();
+			slot = (int) (pos & (CAPACITY - 1));
+			long seqNum = sequences.get(slot);
+			if (seqNum == pos) {
+				if (tail.compareAndSet(pos, pos + 1))
+					break;
+			} else if (seqNum < pos) {
+				Thread.yield(); // full, the drain thread has not freed this slot yet
+			}
+		}
+		int e = slot * 3;
+		events[e] = time;
+		events[e + 1] = ((long) seq << 32) | (len & 0xFFFFFFFFL);
+		events[e + 2] = ((long) ack << 32) | kind;
+		sequences.setRelease(slot, pos + 1); // publishes the event to the drain thread
+	}
+
+	/**
+	 * @return the number of events written
+	 */
+	private int drainAvailable() throws IOException {
+		int n = 0;
+		for (;;) {
+			int slot = (int) (head & (CAPACITY - 1));
+			if (sequences.getAcquire(slot) != head + 1)
+				return n;
+			int e = slot * 3;
+			long time = events[e], sl = events[e + 1], ak = events[e + 2];
+			sequences.setRelease(slot, head + CAPACITY);
+			head++;
+			n++;
+			sink.write((int) ak, time, (int) (sl >>> 32), (int) sl, (int) (ak >>> 32));
+		}
+	}
+
+	private void drain() {
+		try {
+			while (!closed) {
+				if (drainAvailable() == 0)
+					LockSupport.parkNanos(1_000_000);
+			}
+		} catch (IOException e) {
+			System.err.println("Packet trace stopped: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes what is left in the ring and closes the sink, events
+	 * recorded after this are dropped.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (Thread.currentThread() != hook)
+				Runtime.getRuntime().removeShutdownHook(hook);
+		} catch (IllegalStateException e) {
+			// already shutting down
+		}
+		LockSupport.unpark(drainer);
+		try {
+			drainer.join();
+			drainAvailable();
+			sink.close();
+		} catch (InterruptedException | IOException e) {
+			System.err.println("Failed to finish packet trace: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The line printPacket used to print for an event:
+	 * snd|rcv time S|- A|- F|- D|- seq len ack
+	 */
+	static StringBuilder format(StringBuilder sb, int kind, long time, int seq, int len, int ack) {
+		sb.append((kind & SND) != 0 ? "snd " : "rcv ").append(time);
+		sb.append((kind & SYN) != 0 ? " S" : " -");
+		sb.append((kind & ACK) != 0 ? " A" : " -");
+		sb.append((kind & FIN) != 0 ? " F" : " -");
+		sb.append(len > 0 ? " D " : " - ");
+		return sb.append(seq).append(' ').append(len).append(' ').append(ack);
+	}
+
+	/**
+	 * Prints the binary trace at path in the text format.
+	 */
+	public static void print(String path, PrintStream out) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(path + " is not a packet trace");
+			StringBuilder sb = new StringBuilder(64);
+			for (;;) {
+				long time;
+				try {
+					time = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				int seq = in.readInt(), len = in.readInt(), ack = in.readInt(), kind = in.readInt();
+				sb.setLength(0);
+				out.append(format(sb, kind, time, seq, len, ack)).append('\n');
+			}
+		}
+		out.flush();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.out.println("Expects arguments: java PacketTrace <trace file>");
+			return;
+		}
+		print(args[0], System.out);
+	}
+}
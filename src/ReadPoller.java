@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lets virtual threads wait for a channel to become readable without
+ * holding on to a carrier thread. A virtual thread blocked in its own
+ * Selector.select keeps its carrier (the scheduler adds another to
+ * make up for it, up to 256), and the socket adaptor's timed receive
+ * parks inside a synchronized block, which pins it. Here one platform
+ * thread selects for every waiting channel and unparks the thread
+ * waiting on it, the waiter itself just parks.
+ */
+public final class ReadPoller implements Runnable {
+
+	private static class Waiter {
+		final SelectableChannel channel;
+		final Thread thread = Thread.currentThread();
+		volatile boolean ready;
+
+		Waiter(SelectableChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private static class Holder {
+		static final ReadPoller POLLER = new ReadPoller();
+	}
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Waiter> pending = new ConcurrentLinkedQueue<>();
+
+	private ReadPoller() {
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		Thread t = new Thread(this, "read-poller");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Parks until channel (non-blocking) is readable or timeout ms
+	 * have passed, 0 waits for as long as it takes.
+	 *
+	 * @return false on timeout
+	 */
+	public static boolean await(SelectableChannel channel, long timeout) {
+		ReadPoller poller = Holder.POLLER;
+		Waiter w = new Waiter(channel);
+		poller.pending.add(w);
+		poller.selector.wakeup();
+		final long deadline = System.nanoTime() + timeout * 1_000_000;
+		while (!w.ready) {
+			if (timeout == 0) {
+				LockSupport.park(poller);
+			} else {
+				long left = deadline - System.nanoTime();
+				if (left <= 0)
+					return false; // still armed, the next wait on channel takes over
+				LockSupport.parkNanos(poller, left);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				Waiter w;
+				while ((w = pending.poll()) != null) {
+					try {
+						SelectionKey key = w.channel.keyFor(selector);
+						if (key == null)
+							w.channel.register(selector, SelectionKey.OP_READ, w);
+						else {
+							key.interestOps(SelectionKey.OP_READ);
+							key.attach(w);
+						}
+					} catch (ClosedChannelException | CancelledKeyException e) {
+						wake(w); // the waiter finds out when it reads
+					}
+				}
+				selector.select();
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					try {
+						key.interestOps(0);
+					} catch (CancelledKeyException e) {
+						// closed, woken anyway
+					}
+					wake((Waiter) key.attachment());
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Read poller stopped: " + e.getMessage());
+		}
+	}
+
+	private static void wake(Waiter w) {
+		w.ready = true;
+		LockSupport.unpark(w.thread);
+	}
+}
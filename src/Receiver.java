@@ -6,20 +6,141 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.Inflater;
 
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 public class Receiver extends Transport {
 	// ArrayList buffer (protected)
 	// constructor fields (protected)
 	// UDP Socket (protected)
 	private long currentAckTimestamp;
+	// positional mode, segments are written at their offset as they arrive
+	private boolean positional;
+	private FileChannel file;
+	private long fileBase;	// length of the file before the transfer (it is appended to)
+	private long allocated;	// length the file has been extended to
+	private WriteBehind writer;	// the file is written on a thread of its own
+	private boolean windowPermitted;	// the sender takes a window in acks
+	private boolean windowClosed;	// the last ack had no room to advertise
+	private static final long WINDOW_POLL = 10;	// ms, how often a closed window is checked for room
+	private final TreeMap<Integer, Integer> written = new TreeMap<>();	// start to end of the runs written beyond currentAck
+	// segments held beyond currentAck by seq, their sizes vary when the sender probes
+	private final TreeMap<Integer, TCPpacket> held = new TreeMap<>();
+	private int segmentMax;	// largest segment the sender may send
+	private int lastLen;	// length of the last segment
+	private boolean sackPermitted;	// the sender asked for SACK in its SYN
+	private Inflater inflater;	// the sender may deflate segments, null if it did not ask
+	private byte[] inflated = new byte[0];	// swapped with the data of the segment inflated into it
+	private int bufferedEnd;	// end of the highest segment held beyond currentAck
+	private byte[] syn;	// read by a TransferListener, answered from this port
+	private SocketAddress synFrom;
+	private long stripeOffset = -1;	// the SYN asked for the data to go at this offset
+	private long stripeTotal;
+	// resumable transfers, see Checkpoint
+	private Checkpoint checkpoint;	// null unless the sender asked to resume
+	private long resumedAt;	// bytes of the file the sender skipped
+	private long checkpointAt;	// ms, when the checkpoint is saved next
+	private int markAck = -1;	// currentAck at the last save, -1 before the first
+	private long markQueued;	// bytes queued to the writer then
+	private static final long CHECKPOINT_INTERVAL = 1000;	// ms
+	// delta transfers, the file is rebuilt from the one there (the basis) next to it
+	private int deltaBlock;	// block size of the signature, 0 unless the sender sends a delta
+	private long basisLength;
+	private CompletableFuture<byte[]> signature;	// hashed while the sender waits for it
+	private DeltaDecoder decoder;
+	private int ackEvery = 2;	// in order segments per ack
+	private long ackDelay = 10;	// ms an ack for fewer of them is held back
+	private final WritableByteChannel sink;	// written in place of the file, null for the file
 
 	public Receiver(int lp, int rp, String filename, int mtu, int sws) throws SocketException {
+		this(lp, rp, filename, null, mtu, sws);
+	}
+
+	/**
+	 * Writes the data to sink in order as it arrives, rather than to a
+	 * file. A sink that is slow to take it closes the advertised window
+	 * as a slow disk does. It has to be a blocking channel, it is left
+	 * open. A stream is not written in place, so positional mode is
+	 * ignored, and stripes, resume and deltas, which need the file, are
+	 * not offered.
+	 */
+	public Receiver(int lp, int rp, WritableByteChannel sink, int mtu, int sws) throws SocketException {
+		this(lp, rp, "-", sink, mtu, sws);
+	}
+
+	private Receiver(int lp, int rp, String filename, WritableByteChannel sink, int mtu, int sws) throws SocketException {
 		super(lp, rp, filename, mtu, sws);
+		this.sink = sink;
+		segmentMax = maxDataSize;
+	}
+
+	/**
+	 * In positional mode each verified segment is written at its
+	 * offset in the file as soon as it arrives with FileChannel.write
+	 * (ByteBuffer, long), and only the runs of bytes written are kept
+	 * instead of holding out of order packets.
+	 */
+	public void setPositional(boolean positional) {
+		this.positional = positional;
+	}
+
+	/**
+	 * Starts the connection with a SYN that was already read from
+	 * another port (see TransferListener), the SYN+ACK and the rest of
+	 * the transfer come from this Receiver's own port.
+	 */
+	public void handoff(byte[] syn, SocketAddress from) {
+		this.syn = syn;
+		this.synFrom = from;
+	}
+
+	/**
+	 * Acks are sent for every segments in order segments, or delay
+	 * ms after the first one not acked yet (RFC 1122, 5681). Out of
+	 * order and duplicate segments, one that fills a hole and the
+	 * short last segment are acked at once. 1 acks every wakeup.
+	 */
+	public void setDelayedAck(int segments, long delay) {
+		this.ackEvery = Math.max(1, segments);
+		this.ackDelay = delay;
+	}
+
+	/**
+	 * @return the file offset of the stripe received, -1 if the sender
+	 * did not send a stripe
+	 */
+	public long getStripeOffset() {
+		return stripeOffset;
+	}
+
+	/**
+	 * @return the length of the whole file the stripe is part of
+	 */
+	public long getStripeTotal() {
+		return stripeTotal;
+	}
+
+	/**
+	 * @return the bytes received in order, all of them once the
+	 * transfer is done
+	 */
+	public long getBytesReceived() {
+		return currentAck - 1;
 	}
 
 	/*
@@ -36,8 +157,13 @@ public class Receiver extends Transport {
 	protected DatagramPacket initConnection() {
 		try {
 			DatagramPacket bufdp = new DatagramPacket( new byte[ mtu ], mtu );
-			socket.receive(bufdp);
-			TCPpacket init = TCPpacket.deserialize(bufdp.getData());
+			TCPpacket init;
+			if (syn != null) {
+				bufdp.setSocketAddress(synFrom);
+				init = TCPpacket.deserialize(syn);
+			} else {
+				init = receive(bufdp, 0);
+			}
 			printPacket(init, false);
 
 			TCPpacket initRsp = new TCPpacket();
@@ -46,6 +172,43 @@ public class Receiver extends Transport {
 			initRsp.setSeq(currentSeq);
 			initRsp.setAckNum(init.getSeq()+1);
 			initRsp.setTime(init.getTime());
+			sackPermitted = init.isSackPermitted();
+			if (sink != null && init.hasStripe()) {
+				System.err.println("A stripe cannot go to a stream");
+				return null;
+			}
+			if (sink != null)
+				positional = false;
+			if (init.hasStripe()) { // written in place, other stripes share the file
+				stripeOffset = init.getStripeOffset();
+				stripeTotal = init.getStripeTotal();
+				positional = true;
+			}
+			initRsp.setSackPermitted(sackPermitted);
+			if (init.isCompressPermitted()) {
+				inflater = new Inflater(true);
+				initRsp.setCompressPermitted(true);
+			}
+			if (init.isDeltaPermitted() && stripeOffset < 0 && sink == null
+					&& (basisLength = new File(filename).length()) > 0) {
+				positional = false; // the delta is decoded in order
+				deltaBlock = DeltaSignature.blockSize(basisLength);
+				signature = hashBasis();
+				initRsp.setDelta(deltaBlock, basisLength);
+			}
+			if (init.hasResume() && stripeOffset < 0 && deltaBlock == 0 && sink == null) {
+				checkpoint = resumeFrom(init.getResumeLength(), init.getResumeModified());
+				resumedAt = checkpoint.done;
+				initRsp.setResumeOffset(resumedAt);
+			}
+			if (init.getMaxSegment() > 0) { // the sender probes for larger segments
+				segmentMax = Math.max(maxDataSize, Math.min(init.getMaxSegment(), MAX_SEGMENT));
+				resizeBuffers(segmentMax);
+				initRsp.setMaxSegment(segmentMax);
+			}
+			windowPermitted = init.getWindow() >= 0;
+			if (windowPermitted)
+				initRsp.setWindow(window());
 
 			sendData(bufdp, initRsp);
 			currentSeq++;
@@ -64,106 +227,465 @@ public class Receiver extends Transport {
 	}
 
 	/**
-	 * If the packet is not null and is within the sliding window
-	 * store it in the buffer. If that packet is the next expected,
-	 * send all of the buffer that is contiguous, and then send
-	 * an ack.
+	 * If the data segment is within the window (sws of the largest
+	 * segments) it is held until the bytes before it have arrived,
+	 * then everything that is contiguous is written. Segments are
+	 * kept by seq and may overlap, the sender cuts the data again
+	 * when its segment size changes, only the bytes past currentAck
+	 * are written. Segments that are not kept are recycled, the ack
+	 * is up to the caller.
+	 */
+	private void handlePacket(TCPpacket p) throws IOException {
+		final int end = p.getSeq() + p.getDataLen();
+		if (p.getSeq() - currentAck >= segmentMax * sws
+				|| end <= currentAck) { // outside of window or already read
+			recyclePacket(p);
+			return;
+		}
+		bufferedEnd = Math.max(bufferedEnd, end);
+		if (positional) {
+			writeSegment(p);
+			return;
+		}
+		if (p.getSeq() > currentAck) {
+			TCPpacket old = held.get(p.getSeq());
+			if (old == null || old.getDataLen() < p.getDataLen()) {
+				held.put(p.getSeq(), p);
+				p = old;
+			}
+			recyclePacket(p);
+			return;
+		}
+		write(p);
+		recyclePacket(p);
+		// and whatever was held that is now contiguous
+		Map.Entry<Integer, TCPpacket> e;
+		while ((e = held.firstEntry()) != null && e.getKey() <= currentAck) {
+			held.pollFirstEntry();
+			if (e.getKey() + e.getValue().getDataLen() > currentAck)
+				write(e.getValue());
+			recyclePacket(e.getValue());
+		}
+	}
+
+	/**
+	 * Hashes the basis on the common pool, see DeltaSignature.
+	 */
+	private CompletableFuture<byte[]> hashBasis() {
+		final Path path = Paths.get(filename);
+		return CompletableFuture.supplyAsync(() -> {
+			try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+				return DeltaSignature.compute(fc, basisLength, deltaBlock);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * Answers a fetch with the bytes of the signature it asks for, or
+	 * with none while the signature is still being hashed.
+	 */
+	private void answerFetch(TCPpacket fetch, TCPpacket reply) {
+		final long off = fetch.getFetch();
+		reply.setSeq(currentSeq);
+		reply.setAckNum(currentAck);
+		reply.setTime(fetch.getTime());
+		reply.setFetch(off, fetch.getFetchLength());
+		reply.setData(new byte[0]);
+		if (signature != null && signature.isDone()) {
+			final byte[] sig = signature.join(); // a failure ends the transfer
+			if (off < sig.length)
+				reply.setData(sig, (int) off, (int) Math.min(fetch.getFetchLength(), sig.length - off));
+		}
+		sendData(reply);
+		recyclePacket(fetch);
+	}
+
+	/**
+	 * The file rebuilt from a delta replaces the basis once it checks
+	 * out, otherwise it is dropped and the basis stays as it was.
 	 */
-	private TCPpacket handlePacket(TCPpacket p, FileOutputStream out) throws IOException {
-		if (p == null) return null;
-		if (p.getSeq() > currentAck + maxDataSize * sws)
-			return null; // outside of window
-		if (p.getSeq() < currentAck) return null; // already read
-		if (p.isFin()) return p;
-		int bi = bufferIndex(p.getSeq());
-		if (buffer[bi] == null)
-			buffer[bi] = p;
-		if (bi == 0)
-			handleWindow(out);
+	private void finishDelta(Path rebuilt, boolean verified) throws IOException {
+		if (!verified) {
+			Files.deleteIfExists(rebuilt);
+			throw new IllegalStateException("Delta did not rebuild " + filename);
+		}
+		Files.move(rebuilt, Paths.get(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
 
-		return null;
+	/**
+	 * The checkpoint of an earlier transfer of the same file if its
+	 * bytes are still in the file, else a new one from the end of
+	 * the file as it is.
+	 */
+	private Checkpoint resumeFrom(long length, long modified) {
+		final long size = new File(filename).length(); // 0 when there is none
+		Checkpoint c = Checkpoint.load(Checkpoint.pathFor(filename));
+		if (c != null && c.matches(length, modified) && c.done <= length && c.base + c.done <= size)
+			return c;
+		return new Checkpoint(length, modified, size, 0);
 	}
 
 	/**
-	 * Send all of the buffer that is contiguous, reordering
-	 * the packets that are not contiguous. Increment currentAck.
+	 * Saves the checkpoint every CHECKPOINT_INTERVAL ms. The bytes up
+	 * to an ack are only recorded once the writer has written all it
+	 * was given by the time of that ack, one interval later at the
+	 * most, so the checkpoint never claims bytes still in memory.
 	 */
-	private void handleWindow(FileOutputStream out) throws IOException {
-		int c;
-		byte[] data;
-		// c will be the count of read
-		for (c = 0; c < buffer.length && buffer[c] != null; c++) {
-			data = buffer[c].getData();
-			out.write(data);
-			currentAck += data.length;
-			dataTransferred += data.length;
-			currentAckTimestamp = buffer[c].getTime();
-			buffer[c] = null;
+	private void checkpoint(long now) throws IOException {
+		if (checkpoint == null || now < checkpointAt)
+			return;
+		checkpointAt = now + CHECKPOINT_INTERVAL;
+		if (markAck > 0 && writer.written() >= markQueued && !writer.failed()) {
+			checkpoint.done = resumedAt + markAck - 1; // data starts at seq 1
+			checkpoint.save(Checkpoint.pathFor(filename));
 		}
-		// reorder remaining bytes
-		for (int i = 0; c < buffer.length; i++, c++)
-			buffer[i] = buffer[c];
+		markAck = currentAck;
+		markQueued = writer.queued();
 	}
 
-	private TCPpacket readAll(FileOutputStream out) throws IOException {
-		ByteBuffer buf = ByteBuffer.allocate(maxDataSize + TCPpacket.HEADERN);
-		TCPpacket p;
-		channel.configureBlocking(false);
+	/**
+	 * Once the file is complete its checkpoint goes. Otherwise it is
+	 * saved with everything acked, which the closed writer has written
+	 * unless it failed (the last periodic save stands then).
+	 */
+	private void finishCheckpoint(boolean complete) {
+		final Path path = Checkpoint.pathFor(filename);
 		try {
-			Thread.sleep(50);
-		} catch (InterruptedException e) {
-			// do nothing
+			if (complete) {
+				Files.deleteIfExists(path);
+			} else if (writer != null && !writer.failed()) {
+				checkpoint.done = resumedAt + currentAck - 1;
+				checkpoint.save(path);
+			}
+		} catch (IOException e) {
+			System.err.println("Checkpoint " + path + ": " + e.getMessage());
 		}
-		while (channel.receive(buf) != null) {
-			try {
-				buf.flip();
-				p = TCPpacket.deserialize(buf.array());
-				printPacket(p, false);
-				p = handlePacket(p, out);
-				if (p != null) {
-					channel.configureBlocking(true);
-					return p;
-				}
-			} catch (SerialException e) {
-				System.out.println("Bad Checksum");
-				continue;
-			} finally {
-				buf.clear();
+	}
+
+	/**
+	 * Replaces the deflated data of p with the segment it was made from.
+	 * The data array of p is swapped with the reused one inflated into,
+	 * so the segment may still be held without a copy.
+	 *
+	 * @return false if p does not inflate to a segment
+	 */
+	private boolean inflate(TCPpacket p) {
+		if (inflater == null)
+			return false;
+		if (inflated.length < segmentMax)
+			inflated = new byte[segmentMax];
+		final int wire = p.getDataLen();
+		final int n = SegmentCompressor.inflate(inflater, p.getData(), wire, inflated);
+		if (n < 0)
+			return false;
+		inflated = p.exchangeData(inflated, n);
+		p.setCompressed(false);
+		metrics.compressed(n, wire);
+		return true;
+	}
+
+	/**
+	 * Appends the bytes of p from currentAck on, or decodes them
+	 * when they are a delta.
+	 */
+	private void write(TCPpacket p) throws IOException {
+		final int skip = currentAck - p.getSeq();
+		final int len = p.getDataLen() - skip;
+		if (decoder != null)
+			decoder.accept(p.getData(), skip, len);
+		else
+			writer.write(p.getData(), skip, len, -1);
+		currentAck += len;
+		metrics.addData(len);
+		metrics.delivered(len);
+		currentAckTimestamp = p.getTime();
+	}
+
+	/**
+	 * Writes p at its offset unless it was already written, then
+	 * moves currentAck past the contiguous written bytes.
+	 */
+	private void writeSegment(TCPpacket p) throws IOException {
+		final int seq = p.getSeq();
+		final int len = p.getDataLen();
+		final int end = seq + len;
+		Map.Entry<Integer, Integer> run = written.floorEntry(seq);
+		if (seq <= currentAck)
+			currentAckTimestamp = p.getTime();
+		if (run == null || run.getValue() < end) {
+			long pos = fileBase + seq - 1; // data starts at seq 1
+			preallocate(pos + len);
+			writer.write(p.getData(), 0, len, pos);
+			metrics.addData(len);
+			addRun(seq, end);
+		}
+		recyclePacket(p);
+
+		// move past the run that starts at or before currentAck
+		final int before = currentAck;
+		Map.Entry<Integer, Integer> first = written.firstEntry();
+		if (first != null && first.getKey() <= currentAck) {
+			written.pollFirstEntry();
+			currentAck = Math.max(currentAck, first.getValue());
+		}
+		metrics.delivered(currentAck - before);
+	}
+
+	/**
+	 * Adds [start, end) to the written runs, merging it
+	 * with the runs it overlaps or touches.
+	 */
+	private void addRun(int start, int end) {
+		Map.Entry<Integer, Integer> e = written.floorEntry(start);
+		if (e != null && e.getValue() >= start) {
+			start = e.getKey();
+			end = Math.max(end, e.getValue());
+		}
+		while ((e = written.ceilingEntry(start)) != null && e.getKey() <= end) {
+			written.remove(e.getKey());
+			end = Math.max(end, e.getValue());
+		}
+		written.put(start, end);
+	}
+
+	/**
+	 * Extends the file ahead of the writes by at least a window
+	 * so that it does not grow by one segment at a time.
+	 * The unused tail is truncated when the transfer ends.
+	 */
+	private void preallocate(long end) throws IOException {
+		if (end <= allocated)
+			return;
+		allocated = end + (long) segmentMax * sws;
+		file.write(ByteBuffer.allocate(1), allocated - 1);
+	}
+
+	private void sendAck(TCPpacket ack) {
+		ack.setTime(currentAckTimestamp);
+		ack.setAckNum(currentAck);
+		if (sackPermitted)
+			fillSack(ack);
+		if (windowPermitted) {
+			int w = window();
+			ack.setWindow(w);
+			windowClosed = w == 0;
+			if (windowClosed)
+				metrics.zeroWindow();
+		}
+		sendData(ack);
+	}
+
+	/**
+	 * Room for sws of the largest segments, less what the writer is
+	 * behind by past the slack of its buffer (twice that), so the window
+	 * only shrinks once the disk falls a whole window behind. Less than
+	 * a segment is advertised as none, so the sender is not made to send
+	 * small segments as the disk frees a few bytes at a time
+	 * (RFC 1122 4.2.3.3).
+	 */
+	private int window() {
+		final long window = (long) segmentMax * sws;
+		final long free = Math.min(window, 2 * window - (writer == null ? 0 : writer.pending()));
+		return free < segmentMax ? 0 : (int) free;
+	}
+
+	private int writerCapacity() {
+		return (int) Math.min(Integer.MAX_VALUE, 2L * segmentMax * sws);
+	}
+
+	/**
+	 * Reports the runs of bytes held beyond the first
+	 * hole as SACK blocks, lowest first.
+	 */
+	private void fillSack(TCPpacket ack) {
+		ack.clearSack();
+		if (positional) {
+			for (Map.Entry<Integer, Integer> e : written.entrySet()) {
+				if (!ack.addSackBlock(e.getKey(), e.getValue()))
+					return;
+			}
+			return;
+		}
+		int start = -1, end = 0;
+		for (TCPpacket p : held.values()) {
+			if (start >= 0 && p.getSeq() > end) {
+				if (!ack.addSackBlock(start, end))
+					return;
+				start = -1;
 			}
+			if (start < 0)
+				start = p.getSeq();
+			end = Math.max(end, p.getSeq() + p.getDataLen());
 		}
-		channel.configureBlocking(true);
-		return null;
+		if (start >= 0)
+			ack.addSackBlock(start, end);
 	}
 
-	private int bufferIndex(int seq) {
-		return (seq - currentAck) / maxDataSize;
+	/**
+	 * Acks a path MTU probe at once with its size, the padding is dropped.
+	 */
+	private void answerProbe(TCPpacket probe, TCPpacket ack) {
+		ack.setProbe(probe.getProbe());
+		sendAck(ack);
+		recyclePacket(probe);
 	}
 
+	/**
+	 * Waits on the selector until datagrams are queued, handles every
+	 * one of them and then sends a single ack for the lot. When nothing
+	 * arrives within the timeout the last ack is sent again, in case
+	 * it was lost, up to 16 times in a row with the timeout doubled
+	 * each time (a sender that falls back from a black hole is silent
+	 * for a few of its timeouts). While the advertised window is closed
+	 * the sender is quiet on purpose, the writer is checked every
+	 * WINDOW_POLL ms instead and an ack goes out once there is room.
+	 * A delta is rebuilt in name.delta, which replaces the file at the end.
+	 * A sink takes the place of the file.
+	 */
+	@Override
 	protected TCPpacket transferData() {
-		TCPpacket rcv = null;
-		try (FileOutputStream out = new FileOutputStream(filename, true)) {
+		TCPpacket fin = null;
+		final Path out = Paths.get(deltaBlock > 0 ? filename + ".delta" : filename);
+		boolean verified = false;
+		try (FileChannel basis = deltaBlock > 0 ? FileChannel.open(Paths.get(filename), StandardOpenOption.READ) : null;
+				FileChannel fc = sink != null ? null : positional ? FileChannel.open(out,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+				: FileChannel.open(out,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+				WriteBehind w = new WriteBehind(sink != null ? sink : fc, writerCapacity())) {
+			writer = w;
+			if (basis != null) {
+				fc.truncate(0); // left by a delta that failed
+				decoder = new DeltaDecoder(w, basis, basisLength, deltaBlock, segmentMax);
+			}
+			if (checkpoint != null) {
+				fc.truncate(checkpoint.base + checkpoint.done); // anything past it was not verified
+				checkpoint.save(Checkpoint.pathFor(filename));
+			}
+			tuneBuffers((long) sws * (segmentMax + TCPpacket.HEADERN)); // a window sent at once
+			if (positional) {
+				file = fc;
+				fileBase = allocated = fc.size();
+				if (stripeOffset >= 0) {
+					fileBase = stripeOffset;
+					allocated = Long.MAX_VALUE; // growing it could zero another stripe's data
+				}
+			}
 			TCPpacket lastAck = new TCPpacket();
-			TCPpacket fin = null;
 			lastAck.setSeq(currentAck);
 			lastAck.setAckNum(currentAck);
 			lastAck.setAck();
-			while (!(rcv = receiveData(lastAck)).isFin()) {
-				fin = handlePacket(rcv, out);
-				if (fin == null)
-					fin = readAll(out);
+			TCPpacket probeAck = new TCPpacket();
+			probeAck.setAck();
+			TCPpacket fetchReply = new TCPpacket();
+			fetchReply.setAck();
+			int idle = 0;	// timeouts in a row
+			int unacked = 0;	// in order segments not acked yet
+			long ackDue = 0;	// ms, when the delayed ack has to go, 0 for none
+			startPolling();
+			while (true) {
+				checkpoint(System.currentTimeMillis());
+				long wait = Math.max(getTimeOut(), MIN_TIMEOUT) << Math.min(idle, 6); // backs off as the sender's timers do
+				if (windowClosed)
+					wait = Math.min(wait, WINDOW_POLL);
+				if (ackDue > 0)
+					wait = Math.max(1, Math.min(wait, ackDue - System.currentTimeMillis()));
+				TCPpacket p = pollData(wait);
+				if (p == null && ackDue > 0) {
+					sendAck(lastAck);
+					unacked = 0;
+					ackDue = 0;
+					continue;
+				}
+				if (p == null && windowClosed) {
+					if (window() > 0)
+						sendAck(lastAck); // window update
+					continue;
+				}
+				if (p == null) {
+					if (++idle > 16) {
+						System.out.println("Tried Retransmitting 16 times");
+						throw new IllegalStateException("Lost Connection");
+					}
+					sendData(lastAck);
+					metrics.retransmission(lastAck.getSeq());
+					continue;
+				}
+				idle = 0;
+				boolean ackNow = false;
+				for (; p != null; p = pollData(0)) {
+					updateTimeOut(p);
+					if (p.isFin()) {
+						fin = p;
+						break;
+					}
+					if (p.getProbe() > 0) {
+						answerProbe(p, probeAck);
+						continue;
+					}
+					if (p.getFetch() >= 0) {
+						answerFetch(p, fetchReply);
+						continue;
+					}
+					if (p.getDataLen() == 0) { // a window probe
+						ackNow = true;
+						recyclePacket(p);
+						continue;
+					}
+					if (p.isCompressed() && !inflate(p)) {
+						recyclePacket(p);
+						continue;
+					}
+					final int end = p.getSeq() + p.getDataLen();
+					// out of order or a duplicate, fills a hole, or the short last segment
+					if (p.getSeq() != currentAck || bufferedEnd > end || p.getDataLen() < lastLen)
+						ackNow = true;
+					else
+						unacked++;
+					lastLen = p.getDataLen();
+					handlePacket(p);
+				}
+				if (fin != null)
+					break; // acked by termConnection
 
-				lastAck.setTime(currentAckTimestamp);
-				lastAck.setAckNum(currentAck);
-				sendData(lastAck);
+				if (ackNow || unacked >= ackEvery) {
+					sendAck(lastAck);
+					unacked = 0;
+					ackDue = 0;
+				} else if (ackDue == 0) {
+					ackDue = System.currentTimeMillis() + ackDelay;
+				}
+			}
+			w.finish(); // everything acked is in the file
+			if (positional && stripeOffset < 0)
+				fc.truncate(fileBase + currentAck - 1); // drop what was preallocated
+			if (decoder != null) {
+				try (FileChannel rebuilt = FileChannel.open(out, StandardOpenOption.READ)) {
+					verified = decoder.verify(rebuilt);
+				}
 			}
 		} catch (IOException e) {
 			System.err.println(e.getMessage());
+		} finally {
+			if (inflater != null)
+				inflater.end();
+			if (checkpoint != null)
+				finishCheckpoint(fin != null);
 		}
 
-		if (!rcv.isFin())
+		if (fin == null)
 			throw new IllegalStateException("Terminated before fin packet!");
+		if (decoder != null) {
+			try {
+				finishDelta(out, verified);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
 
-		return rcv;
+		return fin;
 	}
 
 	/*
@@ -182,10 +704,16 @@ public class Receiver extends Transport {
 		sendData(rcfFin); // no rcv ack for this
 		currentSeq++;
 		try {
-			TCPpacket rsp = null;
-			do {
-				rsp = receiveData(rcfFin);
-			} while (rsp != null && !rsp.isAck() && currentSeq == rcfFin.getAckNum());
+			// a late segment or the FIN sent again also has the ack flag,
+			// only an empty ack of our FIN ends it
+			boolean acked = false;
+			while (!acked) {
+				TCPpacket rsp = receiveData(rcfFin);
+				if (rsp.isFin())
+					sendData(rcfFin); // our FIN+ACK was lost
+				acked = rsp.isAck() && !rsp.isFin() && rsp.getDataLen() == 0 && rsp.getAckNum() == currentSeq;
+				recyclePacket(rsp);
+			}
 		} catch (IllegalStateException e) {
 			// return normally
 		}
@@ -0,0 +1,283 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A receiver for any number of senders on one port. A single thread
+ * reads every datagram off a non-blocking channel with a Selector and
+ * hands it to one of a few event loops, chosen by the sender's address
+ * so that a connection always lands on the same loop. Each loop owns
+ * the Connection state machines of its senders, so nothing about a
+ * connection is shared between threads. Replies go out on the same
+ * channel (sends on a DatagramChannel are thread safe).
+ *
+ * The datagrams are copied into Inbound buffers that each loop hands
+ * back once it has decoded them, so the dispatch does not allocate once
+ * the pools have grown to the traffic.
+ *
+ * Every connection is written to its own file, see Connection.outputName.
+ * The server runs until it is closed or the process is killed.
+ */
+public class ReceiverServer implements Closeable {
+
+	private static final int INBOX = 4096;	// datagrams queued per loop
+	private static final long TICK = 50;	// ms between connection timer checks
+
+	/**
+	 * A datagram on its way to a loop, the buffer only grows.
+	 */
+	private static class Inbound {
+		SocketAddress from;
+		ByteBuffer data = ByteBuffer.allocate(0);
+
+		void set(SocketAddress from, ByteBuffer src) {
+			this.from = from;
+			if (data.capacity() < src.remaining())
+				data = ByteBuffer.allocate(src.remaining());
+			data.clear();
+			data.put(src).flip();
+		}
+	}
+
+	/**
+	 * One event loop thread and the connections assigned to it.
+	 */
+	class Loop implements Runnable {
+		private final BlockingQueue<Inbound> inbox = new ArrayBlockingQueue<>(INBOX);
+		private final BlockingQueue<Inbound> free = new ArrayBlockingQueue<>(INBOX);	// handed back to the dispatch
+		private final HashMap<SocketAddress, Connection> connections = new HashMap<>();
+		private final ArrayDeque<TCPpacket> pool = new ArrayDeque<>();
+		private final ByteBuffer sendbuf = ByteBuffer.allocateDirect(mtu);
+		private final ByteBuffer writebuf = ByteBuffer.allocateDirect(Transport.MAX_SEGMENT);
+		final TransferMetrics metrics = ReceiverServer.this.metrics;
+
+		@Override
+		public void run() {
+			long lastTick = System.currentTimeMillis();
+			try {
+				while (!closed) {
+					Inbound in = inbox.poll(TICK, TimeUnit.MILLISECONDS);
+					while (in != null) {
+						receive(in);
+						free.offer(in);
+						in = inbox.poll();
+					}
+					long now = System.currentTimeMillis();
+					if (now - lastTick >= TICK) {
+						tick(now);
+						lastTick = now;
+					}
+				}
+			} catch (InterruptedException e) {
+				// closed
+			}
+			for (Connection c : connections.values()) {
+				try {
+					c.close();
+				} catch (IOException e) {
+					// closing anyway
+				}
+			}
+		}
+
+		private void receive(Inbound in) {
+			TCPpacket p = pool.isEmpty() ? new TCPpacket() : pool.pop();
+			try {
+				p.decode(in.data);
+			} catch (ChecksumException e) {
+				metrics.badChecksum();
+				recycle(p);
+				return;
+			} catch (SerialException e) {
+				recycle(p);
+				return;
+			}
+			metrics.packet();
+			if (trace != null)
+				trace.record(false, p);
+			Connection c = connections.get(in.from);
+			if (c == null) {
+				if (!p.isSyn()) { // left over from a closed connection
+					recycle(p);
+					return;
+				}
+				c = new Connection(this, in.from, filename, maxDataSize, sws);
+				connections.put(in.from, c);
+			}
+			try {
+				c.handle(p, System.currentTimeMillis());
+			} catch (IOException e) {
+				System.err.println("Connection " + in.from + " failed: " + e.getMessage());
+				close(c);
+			}
+			if (c.getState() == Connection.State.CLOSED)
+				connections.remove(in.from);
+		}
+
+		private void tick(long now) {
+			for (Iterator<Connection> it = connections.values().iterator(); it.hasNext();) {
+				Connection c = it.next();
+				try {
+					c.tick(now);
+				} catch (IOException e) {
+					System.err.println("Connection " + c.peer + " failed: " + e.getMessage());
+					close(c);
+				}
+				if (c.getState() == Connection.State.CLOSED)
+					it.remove();
+			}
+		}
+
+		private void close(Connection c) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// dropped anyway
+			}
+		}
+
+		void send(TCPpacket p, SocketAddress to) {
+			sendbuf.clear();
+			p.encode(sendbuf);
+			sendbuf.flip();
+			try {
+				channel.send(sendbuf, to);
+				metrics.packet();
+				if (trace != null)
+					trace.record(true, p);
+			} catch (IOException e) {
+				// lost like any other datagram, the peer will resend
+			}
+		}
+
+		void write(FileChannel file, byte[] data, int off, int len) throws IOException {
+			writebuf.clear();
+			writebuf.put(data, off, len).flip();
+			while (writebuf.hasRemaining())
+				file.write(writebuf);
+		}
+
+		void recycle(TCPpacket p) {
+			if (p != null)
+				pool.push(p);
+		}
+	}
+
+	private final String filename;
+	private final int mtu;
+	private final int sws;
+	private final int maxDataSize;
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final Loop[] loops;
+	private final Thread[] threads;
+	private final TransferMetrics metrics = new TransferMetrics();
+	private final int port;
+	private PacketTrace trace;
+	private volatile boolean closed;
+	private long dropped;	// datagrams that found their loop's inbox full
+
+	public ReceiverServer(int port, String filename, int mtu, int sws, int threads) throws IOException {
+		this.filename = filename;
+		this.mtu = mtu;
+		this.sws = sws;
+		this.maxDataSize = mtu - 20 - 8 - 24; // as Transport
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		loops = new Loop[Math.max(1, threads)];
+		this.threads = new Thread[loops.length];
+		for (int i = 0; i < loops.length; i++)
+			loops[i] = new Loop();
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @param trace where the packets of every connection are recorded, null for none
+	 */
+	public void setTrace(PacketTrace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Reads and dispatches datagrams until closed.
+	 */
+	public void run() throws IOException {
+		for (int i = 0; i < loops.length; i++) {
+			threads[i] = new Thread(loops[i], "loop-" + i);
+			threads[i].start();
+		}
+		metrics.start("ReceiverServer-" + port);
+		ByteBuffer buf = ByteBuffer.allocateDirect(65536);
+		try {
+			while (!closed) {
+				selector.select();
+				selector.selectedKeys().clear();
+				SocketAddress from;
+				while ((from = channel.receive(buf)) != null) {
+					buf.flip();
+					Loop loop = loops[(from.hashCode() & Integer.MAX_VALUE) % loops.length];
+					Inbound in = loop.free.poll();
+					if (in == null)
+						in = new Inbound();
+					in.set(from, buf);
+					buf.clear();
+					if (!loop.inbox.offer(in)) {
+						dropped++;
+						loop.free.offer(in);
+					}
+				}
+			}
+		} catch (ClosedChannelException | ClosedSelectorException e) {
+			// closed
+		} finally {
+			close();
+			for (Thread t : threads) {
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					// done waiting
+				}
+			}
+			metrics.stop();
+			if (trace != null)
+				trace.close();
+			if (dropped > 0)
+				System.out.println("Dropped " + dropped + " datagrams with a full inbox");
+		}
+	}
+
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		selector.wakeup();
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+}
@@ -0,0 +1,266 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * A UDP relay on loopback that stands in for a network between a
+ * Sender and a Receiver. The Sender sends to the relay's port instead
+ * of the Receiver's, every datagram from the Receiver goes back to
+ * whoever sent the first datagram that was not from the Receiver.
+ *
+ * Each datagram, in both directions, is dropped with probability loss,
+ * otherwise it is held for delay plus a uniform jitter, which alone
+ * can reorder it with its neighbours. With probability reorder it is
+ * held for another 2 * (delay + jitter) + 5ms so that the ones after
+ * it overtake it. It is sent twice with probability duplicate, and has
+ * a random bit flipped with probability corrupt. A datagram that
+ * would not fit in an IP packet of mtu bytes is dropped without notice
+ * (a black hole), from mtuafter ms after the first datagram on.
+ *
+ * java Relay -p <port> -a <receiver port> [-s <receiver ip>] [-delay ms]
+ *   [-jitter ms] [-loss p] [-dup p] [-reorder p] [-corrupt p] [-seed n]
+ *   [-mtu bytes] [-mtuafter ms]
+ */
+public class Relay implements Runnable, Closeable {
+
+	private static class Datagram implements Comparable<Datagram> {
+		final long at;	// ns
+		final long order;	// ties keep the order they were queued in
+		final byte[] data;
+		final SocketAddress to;
+
+		Datagram(long at, long order, byte[] data, SocketAddress to) {
+			this.at = at;
+			this.order = order;
+			this.data = data;
+			this.to = to;
+		}
+
+		public int compareTo(Datagram o) {
+			return at != o.at ? Long.compare(at, o.at) : Long.compare(order, o.order);
+		}
+	}
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final SocketAddress receiver;
+	private SocketAddress sender;
+	private final PriorityQueue<Datagram> queue = new PriorityQueue<>();
+	private final ByteBuffer buf = ByteBuffer.allocate(65536);
+	private Random rand = new Random();
+	private long queued;
+	private volatile boolean closed;
+	// impairments
+	private long delay;	// ns
+	private long jitter;	// ns
+	private double loss, duplicate, reorder, corrupt;
+	private int mtu = Integer.MAX_VALUE;
+	private long mtuAfter;	// ns
+	private long mtuFrom = Long.MAX_VALUE;	// ns, set by the first datagram
+	// what was done
+	private volatile long forwarded, dropped, duplicated, reordered, corrupted, tooBig;
+
+	public Relay(int port, SocketAddress receiver) throws IOException {
+		this.receiver = receiver;
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+	}
+
+	public void setDelay(double ms) {
+		delay = (long) (ms * 1_000_000);
+	}
+
+	public void setJitter(double ms) {
+		jitter = (long) (ms * 1_000_000);
+	}
+
+	public void setLoss(double p) {
+		loss = p;
+	}
+
+	public void setDuplicate(double p) {
+		duplicate = p;
+	}
+
+	public void setReorder(double p) {
+		reorder = p;
+	}
+
+	public void setCorrupt(double p) {
+		corrupt = p;
+	}
+
+	/**
+	 * Drops datagrams larger than an IP packet of mtu bytes holds,
+	 * starting after ms from the first datagram.
+	 */
+	public void setMtu(int mtu, double after) {
+		this.mtu = mtu;
+		this.mtuAfter = (long) (after * 1_000_000);
+	}
+
+	public void setSeed(long seed) {
+		rand = new Random(seed);
+	}
+
+	/**
+	 * Relays until closed.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (!closed) {
+				Datagram next = queue.peek();
+				if (next == null) {
+					selector.select();
+				} else {
+					long wait = (next.at - System.nanoTime()) / 1_000_000;
+					if (wait > 0)
+						selector.select(wait);
+					else
+						selector.selectNow();
+				}
+				selector.selectedKeys().clear();
+				SocketAddress from;
+				buf.clear();
+				while ((from = channel.receive(buf)) != null) {
+					buf.flip();
+					byte[] data = new byte[buf.remaining()];
+					buf.get(data);
+					impair(from, data);
+					buf.clear();
+				}
+				long now = System.nanoTime();
+				while ((next = queue.peek()) != null && next.at <= now) {
+					queue.poll();
+					channel.send(ByteBuffer.wrap(next.data), next.to);
+					forwarded++;
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (!closed)
+				System.err.println("Relay stopped: " + e);
+		}
+	}
+
+	private void impair(SocketAddress from, byte[] data) {
+		SocketAddress to;
+		if (from.equals(receiver)) {
+			if (sender == null)
+				return; // nobody to send it to yet
+			to = sender;
+		} else {
+			if (sender == null) {
+				sender = from;
+				mtuFrom = System.nanoTime() + mtuAfter;
+			}
+			to = receiver;
+		}
+		if (rand.nextDouble() < loss) {
+			dropped++;
+			return;
+		}
+		if (data.length > mtu - 28 && System.nanoTime() >= mtuFrom) { // IP and UDP headers
+			tooBig++;
+			return;
+		}
+		long hold = delay + (jitter > 0 ? (long) (rand.nextDouble() * jitter) : 0);
+		if (rand.nextDouble() < reorder) {
+			hold += 2 * (delay + jitter) + 5_000_000;
+			reordered++;
+		}
+		if (rand.nextDouble() < corrupt && data.length > 0) {
+			int bit = rand.nextInt(data.length * 8);
+			data[bit >> 3] ^= 1 << (bit & 7);
+			corrupted++;
+		}
+		long now = System.nanoTime();
+		queue.add(new Datagram(now + hold, queued++, data, to));
+		if (rand.nextDouble() < duplicate) {
+			queue.add(new Datagram(now + hold + (jitter > 0 ? (long) (rand.nextDouble() * jitter) : 0), queued++, data, to));
+			duplicated++;
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		selector.wakeup();
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "forwarded " + forwarded + ", dropped " + dropped + ", duplicated " + duplicated
+				+ ", reordered " + reordered + ", corrupted " + corrupted + ", too big " + tooBig;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = -1, rp = -1;
+		String rip = "127.0.0.1";
+		double delay = 0, jitter = 0, loss = 0, dup = 0, reorder = 0, corrupt = 0, mtuAfter = 0;
+		int mtu = Integer.MAX_VALUE;
+		long seed = -1;
+		try {
+			for (int i = 0; i + 1 < args.length; i += 2) {
+				String arg = args[i + 1];
+				switch (args[i]) {
+					case "-p": port = Integer.parseInt(arg); break;
+					case "-a": rp = Integer.parseInt(arg); break;
+					case "-s": rip = arg; break;
+					case "-delay": delay = Double.parseDouble(arg); break;
+					case "-jitter": jitter = Double.parseDouble(arg); break;
+					case "-loss": loss = Double.parseDouble(arg); break;
+					case "-dup": dup = Double.parseDouble(arg); break;
+					case "-reorder": reorder = Double.parseDouble(arg); break;
+					case "-corrupt": corrupt = Double.parseDouble(arg); break;
+					case "-seed": seed = Long.parseLong(arg); break;
+					case "-mtu": mtu = Integer.parseInt(arg); break;
+					case "-mtuafter": mtuAfter = Double.parseDouble(arg); break;
+					default:
+						System.err.println("Unexpected option: " + args[i]);
+						return;
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Bad number: " + e.getMessage());
+			return;
+		}
+		if (port < 0 || rp < 0) {
+			System.out.println("Expects arguments: java Relay -p <port> -a <receiver port> [-s <receiver ip>] [-delay ms] [-jitter ms] [-loss p] [-dup p] [-reorder p] [-corrupt p] [-seed n] [-mtu bytes] [-mtuafter ms]");
+			return;
+		}
+		Relay relay = new Relay(port, new InetSocketAddress(rip, rp));
+		relay.setDelay(delay);
+		relay.setJitter(jitter);
+		relay.setLoss(loss);
+		relay.setDuplicate(dup);
+		relay.setReorder(reorder);
+		relay.setCorrupt(corrupt);
+		relay.setMtu(mtu, mtuAfter);
+		if (seed >= 0)
+			relay.setSeed(seed);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println("Relay " + relay)));
+		relay.run();
+	}
+}
@@ -0,0 +1,193 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a file a few segments ahead of the Sender and deflates each
+ * one on a thread of its own, so compressing does not hold up the send
+ * loop. Every segment is compressed on its own (raw deflate, no zlib
+ * header or trailer) since the receiver may get them in any order or
+ * not at all. A segment that does not come out smaller is handed over
+ * raw, so compression never puts more bytes on the wire. Without
+ * deflate it only reads ahead, for a source like a pipe whose reads
+ * would otherwise block the send loop, and a segment is whatever one
+ * read returned.
+ */
+public class SegmentCompressor implements Closeable {
+
+	/**
+	 * The next segment, data holds length bytes on the wire for
+	 * rawLength bytes of the file.
+	 */
+	public static final class Segment {
+		public final byte[] data;
+		public final int length;
+		public final int rawLength;
+		public final boolean compressed;
+
+		Segment(byte[] data, int length, int rawLength, boolean compressed) {
+			this.data = data;
+			this.length = length;
+			this.rawLength = rawLength;
+			this.compressed = compressed;
+		}
+	}
+
+	private static final Segment END = new Segment(new byte[0], 0, 0, false);
+	private static final long PUT_POLL = 50;	// ms, how often a worker waiting on a full queue checks for close
+
+	private final InputStream in;
+	private final int size;
+	private final ArrayBlockingQueue<Segment> ready;
+	private final Deflater deflater;	// null to only read ahead
+	private long left;
+	private volatile IOException failure;
+	private volatile boolean closed;
+
+	/**
+	 * @param length bytes to read from in, Long.MAX_VALUE for all of it
+	 * @param size bytes of the file in each segment
+	 * @param ahead segments read ahead
+	 */
+	public SegmentCompressor(InputStream in, long length, int size, int ahead) {
+		this(in, length, size, ahead, true);
+	}
+
+	/**
+	 * @param deflate false to hand every segment over raw
+	 */
+	public SegmentCompressor(InputStream in, long length, int size, int ahead, boolean deflate) {
+		this.in = in;
+		this.deflater = deflate ? new Deflater(Deflater.BEST_SPEED, true) : null;
+		this.left = length;
+		this.size = size;
+		this.ready = new ArrayBlockingQueue<>(Math.max(1, ahead));
+		Threads.start(Threads.isVirtual(), this::run, "compressor");
+	}
+
+	/**
+	 * Waits for the next segment.
+	 *
+	 * @return null at the end of the file
+	 * @throws IOException if reading the file failed
+	 */
+	public Segment next() throws IOException {
+		Segment s;
+		try {
+			s = ready.take();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted waiting for the compressor");
+		}
+		if (s != END)
+			return s;
+		ready.add(END); // still there for another call
+		if (failure != null)
+			throw failure;
+		return null;
+	}
+
+	/**
+	 * @return true if next() would not wait
+	 */
+	public boolean ready() {
+		return !ready.isEmpty();
+	}
+
+	private void run() {
+		final byte[] raw = new byte[size];
+		final byte[] out = new byte[size];
+		try {
+			while (left > 0 && !closed) {
+				int n = in.read(raw, 0, (int) Math.min(size, left));
+				if (n < 0)
+					break;
+				left -= n;
+				int c = deflater == null ? -1 : deflate(raw, n, out);
+				if (!put(c < 0 ? new Segment(Arrays.copyOf(raw, n), n, n, false)
+						: new Segment(Arrays.copyOf(out, c), c, n, true)))
+					break;
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			return; // closed
+		} finally {
+			if (deflater != null)
+				deflater.end();
+		}
+		try {
+			put(END);
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Waits for room for s, checking every PUT_POLL ms for close.
+	 *
+	 * @return false if it was closed first
+	 */
+	private boolean put(Segment s) throws InterruptedException {
+		while (!closed) {
+			if (ready.offer(s, PUT_POLL, TimeUnit.MILLISECONDS))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Deflates the first n bytes of raw into out.
+	 *
+	 * @return the compressed length, or -1 if it is not less than n
+	 */
+	private int deflate(byte[] raw, int n, byte[] out) {
+		deflater.reset();
+		deflater.setInput(raw, 0, n);
+		deflater.finish();
+		int c = 0;
+		while (!deflater.finished() && c < n)
+			c += deflater.deflate(out, c, n - c);
+		return deflater.finished() && c < n ? c : -1;
+	}
+
+	/**
+	 * Inflates the len bytes of src that one segment was compressed
+	 * to into dst.
+	 *
+	 * @return the bytes inflated, or -1 if src is not a whole segment
+	 * that fits in dst
+	 */
+	public static int inflate(Inflater inflater, byte[] src, int len, byte[] dst) {
+		inflater.reset();
+		inflater.setInput(src, 0, len);
+		int n = 0;
+		try {
+			while (!inflater.finished() && n < dst.length) {
+				int r = inflater.inflate(dst, n, dst.length - n);
+				if (r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					return -1;
+				n += r;
+			}
+		} catch (DataFormatException e) {
+			return -1;
+		}
+		return inflater.finished() ? n : -1;
+	}
+
+	/**
+	 * Stops the worker once a read in progress returns, segments read
+	 * ahead are dropped. The worker is not interrupted, which would
+	 * close an interruptible channel under the stream.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		ready.clear();
+	}
+}
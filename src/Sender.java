@@ -2,45 +2,263 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketAddress;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class Sender extends Transport {
 	final private String rip; // remote ip
-	private FileInputStream reader;
-	private byte[] buf;
-	private int bufn;
-	private int rightWindowSize;
-	private TCPpacket lastPacket;
+	private static final long TIMER_TICK = 10;	// ms
+	private static final int TIMER_BUCKETS = 512;	// about 5s per turn of the wheel
+	private final Window<TCPpacket> window;
+	private final TimerWheel timers;	// retransmission timer of each window slot
+	// per segment state of the window, indexed by window.slot(i)
+	private TCPpacket[] packets;	// reused for every segment the slot holds, unless mapped
+	private int[] seqs;
+	private int[] lens;	// data length
+	private int[] tries;	// timeouts of the segment without an ack
+	private long[] firstSent;	// ns, for the segment latency
+	private boolean[] sacked;	// reported received by a SACK block
+	private boolean[] resent;	// retransmitted during this recovery
+	private boolean endOfFile;
+	private int duplicateAcks;
+	private boolean timedOut;	// a timer fired in this pass of expire()
+	private final TimerWheel.Expired onExpired = this::segmentExpired;
+	// memory mapped mode, segments are slices of the mapping
+	private boolean mapped;
+	private ByteBuffer view;	// the mapped file, or stripe
+	private long fileSize;
+	private long mapOffset;	// file offset of the next new segment
+	private long[] offsets;	// file offset of each segment, by slot
+	private TCPpacket segment;	// header reused for every mapped send
+	// selective acknowledgements
+	private boolean sack;	// asked for in the SYN
+	private boolean sackEnabled;	// the receiver agreed
+	private boolean inRecovery;
+	private int recoverPoint;	// recovery ends once this is acked
+	private int highSacked;	// end of the highest SACK block seen
+	// striped mode, only [stripeOffset, stripeOffset + stripeLength) is sent
+	private long stripeOffset = -1;
+	private long stripeLength;
+	private long stripeTotal;	// length of the whole file
+	private long left = Long.MAX_VALUE;	// bytes of the stripe not read yet
+	private boolean resume;	// asked for in the SYN
+	private long resumeOffset;	// bytes of the file the receiver already had
+	private FileInputStream input;	// null when mapped
+	// path MTU discovery, segments grow to the largest size a probe got through with
+	private static final int PROBE_TRIES = 3;
+	private static final int PROBE_STEP = 64;	// search stops once low and high are this close
+	private static final int[] PROBE_MTUS = { 1500, 4352, 9000, 16384, 32768, 65535 };	// common link MTUs, tried first
+	private static final int PROBE_OPTION = 6;	// bytes, the probe carries that much less padding
+	private boolean probing;	// asked for in the SYN
+	private int segmentSize;	// data bytes of new segments
+	private int probeLow;	// largest size known to get through
+	private int probeHigh;	// largest size that may
+	private int probeMax;	// largest size the receiver takes
+	private int probeSize;	// size of the probe in flight, 0 for none
+	private int probeTries;
+	private long probeDeadline;	// ms
+	private TCPpacket probe;
+	private boolean blackHole;	// large segments stopped getting through, set by segmentExpired
+	private int rwnd = -1;	// bytes past currentAck the receiver has room for, -1 if it does not say
+	private int persistProbes;	// window probes since the window closed, for the backoff
+	private int persistUnanswered;	// window probes without an ack
+	private long persistAt;	// ms, when the next window probe goes, 0 for none
+	private boolean compress;	// asked for in the SYN
+	private SegmentCompressor compressor;	// while sending, null unless the receiver agreed
+	// delta mode, the stream of a DeltaEncoder is sent in place of the file
+	private static final int FETCH_OPTION = 14;	// bytes, an answer to a fetch carries that much less data
+	private static final long FETCH_POLL = 10;	// ms, how often fetches are checked for a timeout
+	private boolean delta;	// asked for in the SYN
+	private int deltaBlock;	// block size of the receiver's signature, 0 if it did not agree
+	private long basisLength;	// bytes of the receiver's copy
+	private DeltaEncoder encoder;	// while sending
+	private long literalBytes = -1;	// of the file sent as they are, -1 if no delta was sent
+	private final ReadableByteChannel source;	// sent in place of the file, null for the file
 	// ArrayList buffer (protected)
 	// constructor fields (protected)
 	// Udp Socket (protected)
 
-	public Sender(int lp, int rp, String rip, String filename, int mtu, int sws) throws SocketException {
-		super(lp, rp, filename, mtu, sws);
+	/**
+	 * The seqs are ints, so a file (or a stripe of one) of more than
+	 * MAX_FLOW bytes is refused when the transfer starts.
+	 *
+	 * @throws FileNotFoundException if filename cannot be read
+	 * @throws UnknownHostException if rip does not resolve
+	 */
+	public Sender(int lp, int rp, String rip, String filename, int mtu, int sws) throws IOException {
+		this(lp, rp, rip, filename, null, mtu, sws);
+	}
+
+	/**
+	 * Sends what is read from source until it ends, rather than a file,
+	 * so a producer streams without staging its data on disk. Segments
+	 * are read ahead of the window on a thread of their own as soon as
+	 * a read returns, and the source is only read while there is room
+	 * for them, so a full window holds the producer back. It has to be
+	 * a blocking channel, it is left open. There is nothing to map,
+	 * resume, stripe or send a delta of, those settings are ignored, and
+	 * so is probing, which may have to read data again.
+	 */
+	public Sender(int lp, int rp, String rip, ReadableByteChannel source, int mtu, int sws) throws IOException {
+		this(lp, rp, rip, "-", source, mtu, sws);
+	}
+
+	private Sender(int lp, int rp, String rip, String filename, ReadableByteChannel source, int mtu, int sws) throws IOException {
+		super(lp, rp, readable(filename, source), mtu, sws);
 		this.rip = rip;
+		this.source = source;
+		this.window = new Window<>(sws);
+		this.timers = new TimerWheel(window.capacity(), TIMER_BUCKETS, TIMER_TICK);
 		try {
 			this.addr = InetAddress.getByName(rip);
-			buf = new byte[sws];
-			bufn = 0;
-			reader = new FileInputStream(filename);
 		} catch (UnknownHostException e) {
-			System.err.println(e.getMessage());
-			e.printStackTrace();
-			System.exit(1);
-		} catch (FileNotFoundException e) {
-			System.err.println(e.getMessage());
-			e.printStackTrace();
-			System.exit(1);
-		} 
+			close();
+			throw e;
+		}
+		segmentSize = maxDataSize;
+		packets = new TCPpacket[window.capacity()];
+		seqs = new int[window.capacity()];
+		lens = new int[window.capacity()];
+		tries = new int[window.capacity()];
+		firstSent = new long[window.capacity()];
+		sacked = new boolean[window.capacity()];
+		resent = new boolean[window.capacity()];
+	}
+
+	/**
+	 * Checks the file before the socket is opened for it.
+	 *
+	 * @return filename
+	 */
+	private static String readable(String filename, ReadableByteChannel source) throws FileNotFoundException {
+		if (source == null && !Files.isReadable(Paths.get(filename)))
+			throw new FileNotFoundException(filename + " cannot be read");
+		return filename;
+	}
+
+	/**
+	 * In mapped mode the file is mapped with FileChannel.map and
+	 * each segment (retransmits included) is a slice of the mapping
+	 * sent with a gathering write, rather than a TCPpacket holding a
+	 * copy of the data in the window.
+	 */
+	public void setMapped(boolean mapped) {
+		this.mapped = mapped;
+	}
+
+	/**
+	 * Asks the receiver for selective acknowledgements in the SYN,
+	 * when it agrees every segment it reports as missing is resent
+	 * in one round instead of one hole per round trip.
+	 */
+	public void setSack(boolean sack) {
+		this.sack = sack;
+	}
+
+	/**
+	 * Sends only length bytes of the file from offset, as one stripe
+	 * of a StripedSender. The SYN tells the receiver where they go in
+	 * a file of total bytes.
+	 */
+	public void setStripe(long offset, long length, long total) {
+		this.stripeOffset = offset;
+		this.stripeLength = length;
+		this.stripeTotal = total;
+	}
+
+	/**
+	 * Probes for the largest segment the path takes (packetization
+	 * layer path MTU discovery, RFC 4821 and 8899) when the receiver
+	 * agrees in the SYN exchange. The configured mtu is the base that
+	 * is known to work, probes of padding only are sent one at a time
+	 * next to the data, the common link MTUs first and then a binary
+	 * search up to what the receiver takes. New segments use the largest size a probe got
+	 * through with. If full size segments stop getting through while
+	 * smaller ones do (a black hole) the size falls back to the base,
+	 * and everything not acked is cut and sent again at that size.
+	 * The don't fragment bit is set where the JDK has it (19 and up),
+	 * without it a probe that is fragmented on the way still counts.
+	 */
+	public void setProbing(boolean probing) {
+		this.probing = probing;
+	}
+
+	/**
+	 * Offers to deflate the segments in the SYN. When the receiver
+	 * agrees, segments are read and compressed ahead of the window by
+	 * a SegmentCompressor and marked compressed in the header, those
+	 * that do not get smaller go raw. The sequence numbers still count
+	 * the bytes of the file. It takes the place of mapped mode (the
+	 * bytes are copied to compress them anyway) and of probing.
+	 */
+	public void setCompression(boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * Asks the receiver in the SYN for how much of the file it already
+	 * has from an earlier transfer that did not finish, and sends only
+	 * the rest. The receiver keeps a Checkpoint of what it has written,
+	 * identified by the length and modified time of the file. Not for
+	 * stripes, which a StripedSender resends whole.
+	 */
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+
+	/**
+	 * Offers in the SYN to send a delta against the copy of the file
+	 * the receiver already has, as rsync does. A receiver that has one
+	 * answers with the block size of its DeltaSignature, which the
+	 * sender fetches before the data, and the stream of a DeltaEncoder
+	 * goes in place of the file: what is in the receiver's copy is sent
+	 * as references to its blocks, only the rest as bytes. The receiver
+	 * rebuilds the file next to its copy and replaces it once the whole
+	 * file checks out. Takes the place of mapped mode, probing and
+	 * resume, not for stripes.
+	 */
+	public void setDelta(boolean delta) {
+		this.delta = delta;
+	}
+
+	/**
+	 * @return bytes of the file that were sent as they are, the rest
+	 * the receiver copied from its own, -1 if no delta was sent
+	 */
+	public long getLiteralBytes() {
+		return literalBytes;
+	}
+
+	/**
+	 * @return bytes at the start of the file that were not sent
+	 * as the receiver had them
+	 */
+	public long getResumeOffset() {
+		return resumeOffset;
+	}
+
+	/**
+	 * @return the data bytes of the segments being sent
+	 */
+	public int getSegmentSize() {
+		return segmentSize;
 	}
 
 	/*
@@ -55,10 +273,31 @@ public class Sender extends Transport {
 	 */
 	@Override
 	protected DatagramPacket initConnection() {
+		if (source != null) {
+			mapped = resume = delta = probing = false;
+			stripeOffset = -1;
+		}
+		final long length = source != null ? 0 : stripeOffset >= 0 ? stripeLength : new File(filename).length();
+		if (length > MAX_FLOW) {
+			System.err.println(filename + " has " + length + " bytes, more than the " + MAX_FLOW + " one flow carries, send it with -stripes");
+			return null;
+		}
 		try {
 			TCPpacket init = new TCPpacket();
 			init.setSyn();
 			init.setSeq(3); // FIXME random within reason - look up details
+			init.setSackPermitted(sack);
+			init.setCompressPermitted(compress);
+			init.setDeltaPermitted(delta && stripeOffset < 0);
+			if (resume && stripeOffset < 0) {
+				File f = new File(filename);
+				init.setResume(f.length(), f.lastModified());
+			}
+			if (stripeOffset >= 0)
+				init.setStripe(stripeOffset, stripeTotal);
+			if (probing)
+				init.setMaxSegment(MAX_SEGMENT);
+			init.setWindow(0); // takes no data, only says it keeps to the receiver's window
 			init.setCurrentTime();
 			DatagramPacket bufdp = new DatagramPacket(new byte[mtu], mtu, addr, rp);
 
@@ -75,6 +314,30 @@ public class Sender extends Transport {
 				return null;
 			}
 
+			sackEnabled = sack && initRsp.isSackPermitted();
+			compress = compress && initRsp.isCompressPermitted();
+			resumeOffset = Math.max(0, initRsp.getResumeOffset());
+			delta = delta && stripeOffset < 0 && initRsp.getDeltaBlock() > 0;
+			if (delta) {
+				deltaBlock = initRsp.getDeltaBlock();
+				basisLength = initRsp.getBasisLength();
+				resumeOffset = 0;
+				mapped = false;
+				probing = false;
+			}
+			if (compress) {
+				mapped = false;
+				probing = false;
+			}
+			rwnd = initRsp.getWindow();
+			probing = probing && initRsp.getMaxSegment() > maxDataSize;
+			if (probing) {
+				probeLow = maxDataSize;
+				probeHigh = probeMax = Math.min(initRsp.getMaxSegment(), MAX_SEGMENT);
+				resizeBuffers(probeMax);
+				setDontFragment();
+			}
+
 			TCPpacket rspAck = new TCPpacket();
 			rspAck.setAck();
 			rspAck.setAckNum(initRsp.getSeq()+1);
@@ -89,108 +352,653 @@ public class Sender extends Transport {
 		}
 	}
 
-	private boolean fillBuffer(FileInputStream in, int[] seqs) throws IOException {
-		TCPpacket tmp;
-		byte[] dataBuffer = new byte[maxDataSize];
-		for(int i=0; i<this.buffer.length; i++){
-			if(buffer[i] != null){
-				continue;
+	/**
+	 * Maps the file in one piece, what a flow carries (MAX_FLOW) fits
+	 * in a ByteBuffer.
+	 */
+	private void mapFile() throws IOException {
+		try (FileChannel fc = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			final long base = dataStart();
+			fileSize = stripeOffset >= 0 ? stripeLength : Math.max(0, fc.size() - base);
+			view = fc.map(FileChannel.MapMode.READ_ONLY, base, fileSize);
+		}
+		offsets = new long[window.capacity()];
+		segment = new TCPpacket();
+		segment.setAck();
+	}
+
+	/**
+	 * Records the round trip time as well. The time p carries is the
+	 * echo of one of ours, on the Receiver it is the Sender's clock.
+	 */
+	@Override
+	protected void updateTimeOut(TCPpacket p) {
+		metrics.rtt((System.nanoTime() - p.getTime()) / 1000);
+		super.updateTimeOut(p);
+	}
+
+	/**
+	 * Reads and sends new segments into the free slots at the end
+	 * of the window until it is full or the file has been read, or
+	 * the source has nothing yet.
+	 */
+	private void fillWindow(InputStream in) throws IOException {
+		while (!endOfFile && window.length() < sendWindow() && windowOpen() && !starved()) {
+			final int i = window.length();
+			final int slot = window.slot(i);
+			int rc = mapped ? nextMappedSegment(slot) : compressor != null ? nextCompressedSegment(slot) : nextSegment(in, slot);
+			if (rc == -1) {
+				endOfFile = true;
+				return;
 			}
-			int rc = in.read(dataBuffer);
-			if(rc == -1){
-				return true;
-			}
-			tmp = new TCPpacket();
-			tmp.setData(dataBuffer, 0, rc);
-			tmp.setAck();
-			tmp.setAckNum(this.currentAck);
-			tmp.setSeq(currentSeq);
-			seqs[i] = currentSeq;
-			rightWindowSize = Math.max(currentSeq + rc, rightWindowSize);
-			this.buffer[i] = tmp;
-			lastPacket = tmp;
+			if (currentSeq - 1L + rc > MAX_FLOW)
+				throw new IOException("More than " + MAX_FLOW + " bytes to send in one flow");
+			seqs[slot] = currentSeq;
+			lens[slot] = rc;
+			sacked[slot] = false;
+			resent[slot] = false;
+			tries[slot] = 0;
+			firstSent[slot] = System.nanoTime();
+			sendSegment(i);
 			// System.out.println("Buffer "+i+" filled with "+ rc+" bytes of data with Seq: "+ currentSeq);
 			currentSeq += rc;
-			dataTransferred += rc;
+			metrics.addData(rc);
+		}
+	}
+
+	/**
+	 * Reads the next segment straight into the data of the packet of
+	 * slot and adds it to the window.
+	 *
+	 * @return the bytes read or -1 at the end of the file
+	 */
+	private int nextSegment(InputStream in, int slot) throws IOException {
+		if (left == 0)
+			return -1; // end of the stripe
+		TCPpacket p = packet(slot);
+		byte[] data = p.getData();
+		if (data == null || data.length < segmentSize)
+			data = new byte[segmentSize];
+		int rc = in.read(data, 0, (int) Math.min(segmentSize, left));
+		if (rc == -1)
+			return rc;
+		left -= rc;
+		p.exchangeData(data, rc);
+		p.setAckNum(this.currentAck);
+		p.setSeq(currentSeq);
+		window.add(p);
+		return rc;
+	}
+
+	/**
+	 * @return the packet of slot, made the first time
+	 */
+	private TCPpacket packet(int slot) {
+		if (packets[slot] == null) {
+			packets[slot] = new TCPpacket();
+			packets[slot].setAck();
 		}
-		return false;
+		return packets[slot];
+	}
+
+	/**
+	 * Takes the next segment from the compressor and adds it to the
+	 * window, deflated or raw as it came.
+	 *
+	 * @return the bytes of the file it holds or -1 at the end of the file
+	 */
+	private int nextCompressedSegment(int slot) throws IOException {
+		SegmentCompressor.Segment s = compressor.next();
+		if (s == null)
+			return -1;
+		TCPpacket p = packet(slot);
+		p.exchangeData(s.data, s.length);
+		p.setCompressed(s.compressed);
+		p.setAckNum(this.currentAck);
+		p.setSeq(currentSeq);
+		window.add(p);
+		if (s.compressed)
+			metrics.compressed(s.rawLength, s.length);
+		return s.rawLength;
+	}
+
+	/**
+	 * Only records the file offset of the next segment,
+	 * it is sliced out of the mapping when it is sent.
+	 *
+	 * @return the segment length or -1 at the end of the file
+	 */
+	private int nextMappedSegment(int slot) {
+		if (mapOffset >= fileSize)
+			return -1;
+		int len = (int) Math.min(segmentSize, fileSize - mapOffset);
+		window.add(null);
+		offsets[slot] = mapOffset;
+		mapOffset += len;
+		return len;
+	}
+
+	/**
+	 * Points the reused segment header at the slice of the
+	 * mapping that holds segment i of the window.
+	 */
+	private TCPpacket slice(int i) {
+		final int slot = window.slot(i);
+		int pos = (int) offsets[slot];
+		view.clear();
+		view.position(pos).limit(pos + lens[slot]);
+		segment.setSeq(seqs[slot]);
+		segment.setAckNum(currentAck);
+		segment.setData(view);
+		return segment;
+	}
+
+	/**
+	 * Sends segment i and (re)starts its timer, the timeout is
+	 * doubled for each time the segment has already timed out.
+	 */
+	private void sendSegment(int i) {
+		final int slot = window.slot(i);
+		TCPpacket p = mapped ? slice(i) : window.get(i);
+		p.setCurrentTime();
+		long rto = Math.max(getTimeOut(), MIN_TIMEOUT) << Math.min(tries[slot], 6);
+		timers.schedule(slot, System.currentTimeMillis() + rto);
+		sendData(p);
+	}
+
+	private void retransmit(int i) {
+		sendSegment(i);
+		metrics.retransmission(seqs[window.slot(i)]);
 	}
 
-	private TCPpacket sendBuffer() {
-		for(int i = 0; i<this.buffer.length; i++) {
-			if(buffer[i] == null){
+	/**
+	 * A cumulative ack frees every segment that ends at or before it,
+	 * the third duplicate triggers a fast retransmit of the oldest and
+	 * starts a recovery, which lasts until everything sent before it is
+	 * acked. With SACK every reported hole is resent instead of the oldest.
+	 */
+	private void handleAck(TCPpacket ack) throws IOException {
+		if (ack.getFetch() >= 0)
+			return; // a late answer to a fetch
+		final int ackNum = ack.getAckNum();
+		persistUnanswered = 0;
+		if (ack.getWindow() >= 0 && ackNum >= currentAck)
+			rwnd = ack.getWindow();
+		if (ack.getProbe() > 0) {
+			probeAcked(ack.getProbe());
+			if (ackNum <= currentAck)
+				return; // not a duplicate
+		}
+		if (sackEnabled)
+			markSacked(ack);
+		if (ackNum > currentAck) {
+			int acked = 0, slot;
+			final long now = System.nanoTime();
+			while (acked < window.length()
+					&& seqs[slot = window.slot(acked)] + lens[slot] <= ackNum) {
+				timers.cancel(slot);
+				metrics.segmentLatency((now - firstSent[slot]) / 1000);
+				acked++;
+			}
+			metrics.delivered(ackNum - currentAck);
+			if (cc == null || cc.window() < cc.ssthresh())
+				sampleDelivery(ackNum - currentAck);
+			tuneBuffers(Math.max(bandwidthDelay(), windowBytes()));
+			window.slide(acked);
+			if (window.length() > 0 && !timers.isScheduled(slot = window.slot(0)))
+				timers.schedule(slot, System.currentTimeMillis() + Math.max(getTimeOut(), MIN_TIMEOUT));
+			currentAck = ackNum;
+			if (currentAck > currentSeq) // held by the receiver from before a fall back
+				seek(currentAck);
+			duplicateAcks = 0;
+			updateTimeOut(ack);
+			if (inRecovery && ackNum >= recoverPoint) {
+				inRecovery = false;
+				if (cc != null)
+					cc.onRecoveryEnd();
+				return;
+			}
+			if (cc != null)
+				cc.onAck(acked, ERTT);
+			if (inRecovery) { // partial ack
+				if (sackEnabled)
+					retransmitHoles();
+				else if (window.length() > 0)
+					retransmit(0);
+			}
+		} else if (ackNum == currentAck) {
+			metrics.dupAck();
+			if (window.length() == 0) {
+				duplicateAcks = 0; // nothing in flight to be lost, an answer to a probe
+				return;
+			}
+			duplicateAcks += 1;
+			if (inRecovery && cc != null)
+				cc.onDupAck();
+			if (!inRecovery && duplicateAcks >= 3) {
+				inRecovery = true;
+				recoverPoint = currentSeq;
+				if (cc != null)
+					cc.onLoss(window.length());
+			} else if (!inRecovery || duplicateAcks % 3 != 0) {
+				return;
+			} else {
+				// still no progress, what was resent was likely lost as well
+				clearResent();
+			}
+			if (sackEnabled)
+				retransmitHoles();
+			else
+				retransmit(0); // Fast Retransmit with 3 duplicate ACKs
+		} else {
+			metrics.outOfSequence();
+		}
+	}
+
+	/**
+	 * Marks the segments in the window covered by the SACK blocks of ack.
+	 */
+	private void markSacked(TCPpacket ack) {
+		if (window.length() == 0)
+			return;
+		final int first = seqs[window.slot(0)];
+		for (int b = 0; b < ack.getSackBlocks(); b++) {
+			int start = ack.getSackStart(b), end = ack.getSackEnd(b);
+			if (end <= first)
 				continue;
+			int i = segmentAt(start), slot;
+			for (; i < window.length() && seqs[slot = window.slot(i)] < end; i++) {
+				if (seqs[slot] >= start && seqs[slot] + lens[slot] <= end)
+					sacked[slot] = true;
+			}
+			highSacked = Math.max(highSacked, end);
+		}
+	}
+
+	/**
+	 * @return the index of the first segment in the window that
+	 * ends after seq
+	 */
+	private int segmentAt(int seq) {
+		int lo = 0, hi = window.length();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1, slot = window.slot(mid);
+			if (seqs[slot] + lens[slot] <= seq)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private void clearResent() {
+		for (int i = 0; i < window.length(); i++)
+			resent[window.slot(i)] = false;
+	}
+
+	/**
+	 * Resends every segment below the highest SACK block that was
+	 * not reported and has not been resent in this recovery.
+	 */
+	private void retransmitHoles() {
+		int slot;
+		for (int i = 0; i < window.length() && seqs[slot = window.slot(i)] < highSacked; i++) {
+			if (!sacked[slot] && !resent[slot]) {
+				retransmit(i);
+				resent[slot] = true;
 			}
-			buffer[i].setCurrentTime();
-			sendData(buffer[i]);
-			DatagramPacket buf = new DatagramPacket(new byte[mtu], mtu);
-			buf.setData(buffer[i].serialize());
 		}
-		TCPpacket incoming = receiveDataTransfer(buffer[0]);
-		return incoming;
 	}
 
-	private void moveBufferWindow(int[] seqs, int ackNum) {
-		boolean found = false;
-		for(int i = 0; i<seqs.length; i++){
-			if (seqs[i]==ackNum){
-				moveWindow(i, seqs);
-				found = true;
+	/**
+	 * Called by the timer wheel when segment slot has not been acked
+	 * within its timeout, the segment is resent on its own. The first
+	 * timeout of a pass ends any recovery and tells the congestion
+	 * control, the rest of the segments that expired with it are part
+	 * of the same loss.
+	 */
+	private void segmentExpired(int slot) {
+		if (sacked[slot] && window.index(slot) > 0)
+			return; // the receiver has it, the oldest segment's timer covers a lost ack
+		if (blackHole)
+			return; // everything is sent again
+		if (++tries[slot] > 16) {
+			System.out.println("Tried Retransmitting 16 times");
+			throw new IllegalStateException("Lost Connection");
+		}
+		if (probing && tries[slot] >= 2 && lens[slot] > maxDataSize) {
+			blackHole = true;
+			probeHigh = lens[slot] - 1;
+			return;
+		}
+		if (!timedOut) {
+			timedOut = true;
+			if (inRecovery) { // start over, the resent segments may have been lost too
+				inRecovery = false;
+				clearResent();
 			}
+			if (cc != null)
+				cc.onTimeout(window.length());
 		}
-		if(found == false) {
-			for(int i = 0; i<buffer.length; i++) {
-				buffer[i] = null;
+		retransmit(window.index(slot));
+	}
+
+	/**
+	 * Sends the next probe when none is in flight and the search is not
+	 * over, and gives up on one that was not acked within a timeout.
+	 * A probe is not part of the window, its loss is not a congestion
+	 * signal. A probe the socket refuses to send (larger than the
+	 * interface MTU with don't fragment set) failed right away.
+	 */
+	private void probe(long now) {
+		if (probeSize > 0 && now >= probeDeadline) {
+			if (++probeTries < PROBE_TRIES) {
+				sendProbe(now);
+				return;
 			}
+			probeHigh = probeSize - 1;
+			probeSize = 0;
+		}
+		if (probeSize > 0 || (probeSize = nextProbeSize()) == 0)
+			return;
+		probeTries = 0;
+		probe = new TCPpacket();
+		probe.setAck();
+		probe.setData(new byte[probeSize - PROBE_OPTION]); // a datagram as large as a segment of probeSize
+		probe.setProbe(probeSize);
+		sendProbe(now);
+	}
+
+	/**
+	 * The next size to probe: the common link MTUs between the
+	 * known good size and the largest that may work come first
+	 * (RFC 4821 7.3), then a binary search between the two. Sizes are
+	 * even as an odd segment is sent with a byte of padding.
+	 *
+	 * @return the data bytes to probe, 0 if the search is over
+	 */
+	private int nextProbeSize() {
+		for (int m : PROBE_MTUS) {
+			int size = Math.min(m - 28 - TCPpacket.HEADERN, probeMax) & ~1;
+			if (size > probeLow && size <= probeHigh)
+				return size;
 		}
+		if (probeHigh - probeLow < PROBE_STEP)
+			return 0;
+		return ((probeLow + probeHigh + 1) >>> 1) & ~1;
 	}
 
-	private void moveWindow(int toFree, int[] seqs) {
-		int ind = 0;
-		for(int i = toFree; i<buffer.length;i++){
-			buffer[ind] = buffer[i];
-			seqs[ind] = seqs[i];
-			ind += 1;
+	private void sendProbe(long now) {
+		probe.setSeq(currentSeq);
+		probe.setAckNum(currentAck);
+		probe.setCurrentTime();
+		probeDeadline = now + Math.max(getTimeOut(), MIN_TIMEOUT); // acked at once, no delayed ack
+		try {
+			sendData(probe);
+		} catch (UncheckedIOException e) { // message too long
+			probeHigh = probeSize - 1;
+			probeSize = 0;
 		}
-		while(ind < buffer.length){
-			buffer[ind] = null;
-			seqs[ind] = -1;
-			ind += 1;
+	}
+
+	private void probeAcked(int size) {
+		if (size != probeSize)
+			return; // one given up on already
+		probeLow = size;
+		segmentSize = Math.max(segmentSize, size);
+		probeSize = 0;
+	}
+
+	/**
+	 * Falls back to the base segment size after a black hole: every
+	 * segment in the window is dropped and the data from currentAck is
+	 * read again in segments of the base size. Counted as a timeout.
+	 */
+	private void fallBack() throws IOException {
+		blackHole = false;
+		if (cc != null)
+			cc.onTimeout(window.length());
+		metrics.retransmission(currentAck);
+		for (int i = 0; i < window.length(); i++)
+			timers.cancel(window.slot(i));
+		window.slide(window.length());
+		segmentSize = probeLow = maxDataSize;
+		probeSize = 0;
+		inRecovery = false;
+		duplicateAcks = 0;
+		highSacked = 0;
+		seek(currentAck);
+	}
+
+	/**
+	 * @return the offset in the file of seq 1
+	 */
+	private long dataStart() {
+		return stripeOffset >= 0 ? stripeOffset : resumeOffset;
+	}
+
+	/**
+	 * @return bytes to send from dataStart(), Long.MAX_VALUE for the rest of the file
+	 */
+	private long dataLength() {
+		return stripeOffset >= 0 ? stripeLength : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Makes seq the next byte to be read and sent.
+	 */
+	private void seek(int seq) throws IOException {
+		final long done = seq - 1; // data starts at seq 1
+		currentSeq = seq;
+		endOfFile = false;
+		if (mapped) {
+			mapOffset = done;
+		} else {
+			input.getChannel().position(dataStart() + done);
+			left = dataLength() - done;
 		}
 	}
 
+	/**
+	 * Keeps up to sws segments in flight: new segments are sent as soon
+	 * as acks free space in the window, and every ack that is queued is
+	 * handled per wakeup. Each segment has its own timer on the wheel,
+	 * which is checked on every tick and resends only the segments
+	 * whose timeout ran out. A SACKed segment is only resent once it
+	 * is the oldest, its timer is left to lapse otherwise. The socket
+	 * buffers grow with the window, and to the bandwidth-delay product
+	 * measured in slow start, so the kernel does not drop what the
+	 * window lets through.
+	 */
 	@Override
 	protected TCPpacket transferData() {
 		// System.out.println("Starting Transfer");
 		currentSeq = 1;
-		boolean endReached = false;
-		int[] seqs = new int[buffer.length];
-		try (FileInputStream in = new FileInputStream(this.filename);) {
-			while(!endReached){
-				endReached = fillBuffer(in, seqs);
-				TCPpacket incoming = sendBuffer();
-				// System.out.println("Incoming ACK: "+ incoming.getAckNum());
-				moveBufferWindow(seqs, incoming.getAckNum());
-				this.currentAck = incoming.getAckNum();
-			}
-			endReached = false;
-			while(!endReached) {
-				TCPpacket p = receiveData(lastPacket);
-				// System.out.println(p.getAckNum() + " : " + rightWindowSize);
-				if (p.getAckNum() == rightWindowSize){
-					endReached = true;
-					currentAck = p.getAckNum();
+		try (InputStream in = mapped ? null : openInput()) {
+			if (mapped)
+				mapFile();
+			if (compress || source != null)
+				compressor = new SegmentCompressor(in, left, segmentSize, sws, compress);
+			startPolling();
+			tuneBuffers(windowBytes());
+			fillWindow(in);
+			while (window.length() > 0 || !endOfFile) {
+				TCPpacket incoming = pollData(timers.untilNextTick(System.currentTimeMillis()));
+				for (; incoming != null; incoming = pollData(0)) {
+					handleAck(incoming);
+					recyclePacket(incoming);
 				}
+				timedOut = false;
+				final long now = System.currentTimeMillis();
+				timers.expire(now, onExpired);
+				if (blackHole)
+					fallBack();
+				if (probing)
+					probe(now);
+				fillWindow(in);
+				persist(now);
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(1);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			if (compressor != null)
+				compressor.close();
+			if (encoder != null)
+				literalBytes = encoder.getLiteralBytes();
 		}
 		return null;
 	}
 
+	/**
+	 * @return the file from dataStart(), the delta of it, or the source
+	 */
+	private InputStream openInput() throws IOException {
+		if (source != null) {
+			left = Long.MAX_VALUE;
+			return new FilterInputStream(Channels.newInputStream(source)) {
+				@Override
+				public void close() {
+					// the caller's channel
+				}
+			};
+		}
+		if (delta)
+			return encoder = DeltaEncoder.encode(Paths.get(filename), fetchSignature(), basisLength, deltaBlock);
+		FileInputStream in = new FileInputStream(filename);
+		in.getChannel().position(dataStart());
+		left = dataLength();
+		return input = in;
+	}
+
+	/**
+	 * Fetches the receiver's signature a chunk at a time: a fetch names
+	 * the offset of a chunk and the receiver answers with its bytes, or
+	 * with none while it is still hashing. Up to sws fetches are out at
+	 * once, one without an answer is sent again at the timeout, backed
+	 * off, and the transfer gives up after 16 in a row, as for a segment.
+	 * An answer without data starts the count over.
+	 */
+	private byte[] fetchSignature() throws IOException {
+		final long length = DeltaSignature.length(basisLength, deltaBlock);
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Signature of " + length + " bytes");
+		final byte[] sig = new byte[(int) length];
+		final int chunk = maxDataSize - FETCH_OPTION;
+		final int chunks = (int) ((length + chunk - 1) / chunk);
+		final long[] sentAt = new long[chunks];
+		final int[] tries = new int[chunks];
+		final boolean[] got = new boolean[chunks];
+		int base = 0;	// first chunk not answered
+		int next = 0;	// first chunk not asked for
+		TCPpacket fetch = new TCPpacket();
+		fetch.setAck();
+		fetch.setSeq(currentSeq);
+		startPolling();
+		while (base < chunks) {
+			final long now = System.currentTimeMillis();
+			final long rto = Math.max(getTimeOut(), MIN_TIMEOUT);
+			for (int i = base; i < next; i++) {
+				if (got[i] || now - sentAt[i] < rto << Math.max(0, Math.min(tries[i], 6)))
+					continue;
+				if (++tries[i] > 16) {
+					System.out.println("Tried Retransmitting 16 times");
+					throw new IllegalStateException("Lost Connection");
+				}
+				sendFetch(fetch, (long) i * chunk, (int) Math.min(chunk, length - (long) i * chunk));
+				sentAt[i] = now;
+				if (tries[i] > 0)
+					metrics.retransmission(currentSeq);
+			}
+			for (; next < chunks && next - base < sws; next++) {
+				sendFetch(fetch, (long) next * chunk, (int) Math.min(chunk, length - (long) next * chunk));
+				sentAt[next] = now;
+			}
+			for (TCPpacket p = pollData(FETCH_POLL); p != null; p = pollData(0)) {
+				final long off = p.getFetch();
+				final int i = (int) (off / chunk);
+				if (off >= 0 && off % chunk == 0 && i < chunks && !got[i]) {
+					if (p.getDataLen() == Math.min(chunk, length - off)) {
+						System.arraycopy(p.getData(), 0, sig, (int) off, p.getDataLen());
+						got[i] = true; // no rtt sample, the receiver may be busy hashing
+					} else if (p.getDataLen() == 0) { // not ready, asked again at the timeout, not a loss
+						tries[i] = -1;
+						sentAt[i] = System.currentTimeMillis();
+					}
+				}
+				recyclePacket(p);
+			}
+			while (base < chunks && got[base])
+				base++;
+		}
+		return sig;
+	}
+
+	private void sendFetch(TCPpacket fetch, long offset, int length) {
+		fetch.setAckNum(currentAck);
+		fetch.setFetch(offset, length);
+		fetch.setCurrentTime();
+		sendData(fetch);
+	}
+
+	/**
+	 * @return bytes of the datagrams of a full send window
+	 */
+	private long windowBytes() {
+		return (long) sendWindow() * (segmentSize + TCPpacket.HEADERN);
+	}
+
+	/**
+	 * @return true if the receiver has room for another segment
+	 */
+	private boolean windowOpen() {
+		return rwnd < 0 || currentSeq - currentAck + segmentSize <= rwnd;
+	}
+
+	/**
+	 * @return true while the source has not read the next segment yet
+	 */
+	private boolean starved() {
+		return source != null && !compressor.ready();
+	}
+
+	/**
+	 * Once nothing is in flight and the receiver's window is closed,
+	 * no ack would come to open it again, so an empty segment is sent
+	 * at the retransmission timeout, backed off, for the receiver to
+	 * ack with its current window. A receiver that answers is only
+	 * slow, the transfer gives up after 16 probes in a row go
+	 * unanswered, as it does for a segment. The same probes keep the
+	 * connection alive while a source has nothing to send, the receiver
+	 * gives up after 16 of its timeouts without a segment.
+	 */
+	private void persist(long now) {
+		if (window.length() > 0 || endOfFile || windowOpen() && !starved()) {
+			persistProbes = 0;
+			persistAt = 0;
+			return;
+		}
+		if (persistAt == 0)
+			persistAt = now + (Math.max(getTimeOut(), MIN_TIMEOUT) << Math.min(persistProbes, 6));
+		if (now < persistAt)
+			return;
+		if (++persistUnanswered > 16) {
+			System.out.println("Tried Retransmitting 16 times");
+			throw new IllegalStateException("Lost Connection");
+		}
+		TCPpacket p = new TCPpacket();
+		p.setAck();
+		p.setSeq(currentSeq);
+		p.setAckNum(currentAck);
+		p.setCurrentTime();
+		sendData(p);
+		if (!windowOpen())
+			metrics.zeroWindow();
+		persistProbes++;
+		persistAt = 0;
+	}
+
 	@Override
-	protected void termConnection(TCPpacket finPacket) { //TODO: Need to add time wait state
+	protected void termConnection(TCPpacket finPacket) {
 		// System.out.println("Starting Termination");
 		TCPpacket finInit = new TCPpacket();
 		finInit.setAck();
@@ -205,7 +1013,7 @@ public class Sender extends Transport {
 		this.currentAck = prev.getAckNum();
 		if(!prev.isFin() || !prev.isAck()){
 			System.out.println("Got bad fin Packet back from reciever");
-			System.exit(1);
+			throw new IllegalStateException("Bad FIN");
 		}
 
 		TCPpacket finFinal = new TCPpacket();
@@ -213,13 +1021,20 @@ public class Sender extends Transport {
 		finFinal.setAckNum(2);
 		finFinal.setSeq(this.currentAck);
 		finFinal.setCurrentTime();
-		while(sendData(finFinal)){
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		sendData(finFinal);
+		// time wait: if the ack is lost the receiver resends its FIN,
+		// it is done once nothing has come back for two timeouts
+		try {
+			startPolling();
+			TCPpacket p;
+			while ((p = pollData(2 * Math.max(getTimeOut(), MIN_TIMEOUT))) != null) {
+				boolean fin = p.isFin();
+				recyclePacket(p);
+				if (fin && !sendData(finFinal))
+					break;
 			}
+		} catch (IOException e) {
+			// port unreachable, the receiver has closed
 		}
 		// System.out.println("Connection Terminated on Sender");
 	}
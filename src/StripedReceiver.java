@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Receives one file sent in stripes by a StripedSender. Each stripe
+ * is a connection of its own (see TransferListener) whose Receiver
+ * writes it in place at the offset given in its SYN. A stripe that
+ * failed is sent again by the sender on a new connection. Once the
+ * stripes that completed cover the whole file, it is truncated to
+ * its length (it may have been longer before) and the receiver stops.
+ */
+public class StripedReceiver extends TransferListener {
+
+	private final TreeMap<Long, Long> done = new TreeMap<>();	// offset to end of each completed stripe
+	private long total = -1;
+	private volatile boolean complete;
+
+	public StripedReceiver(int port, String filename, int mtu, int sws) throws IOException {
+		super(port, filename, mtu, sws, false); // a core per stripe rather than many transfers
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	@Override
+	protected Receiver newReceiver(SocketAddress peer) throws SocketException {
+		return new Receiver(0, 0, filename, mtu, sws);
+	}
+
+	@Override
+	protected void finished(Receiver r, boolean ok) {
+		if (!ok || r.getStripeOffset() < 0)
+			return;
+		synchronized (done) {
+			long start = r.getStripeOffset();
+			done.merge(start, start + r.getBytesReceived(), Math::max);
+			total = r.getStripeTotal();
+			if (covered() < total)
+				return;
+			complete = true;
+		}
+		close();
+	}
+
+	/**
+	 * @return the end of the completed stripes that are contiguous from 0
+	 */
+	private long covered() {
+		long end = 0;
+		for (Map.Entry<Long, Long> e : done.entrySet()) {
+			if (e.getKey() > end)
+				break;
+			end = Math.max(end, e.getValue());
+		}
+		return end;
+	}
+
+	/**
+	 * Receives stripes until the file is complete (or closed).
+	 */
+	@Override
+	public void run() throws IOException {
+		super.run();
+		if (!complete) {
+			System.err.println("Incomplete: " + covered() + " of " + total + " bytes");
+			return;
+		}
+		try (FileChannel fc = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			fc.truncate(total);
+		}
+		System.out.println("Received " + total + " bytes in " + done.size() + " stripes to " + filename);
+	}
+}
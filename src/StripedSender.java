@@ -0,0 +1,158 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends one file as n stripes at once. Each stripe is a byte range,
+ * a whole number of segments long, sent by a Sender of its own on its
+ * own port and thread, so a large transfer is not bound to one core
+ * or one flow. Every stripe retransmits and times out on its own, a
+ * stripe whose connection fails is sent again from a new port up to
+ * STRIPE_TRIES times. The file is delivered once every stripe is,
+ * the StripedReceiver checks the same on its side.
+ */
+public class StripedSender {
+
+	private static final int STRIPE_TRIES = 3;
+
+	private final int lp;
+	private final int rp;
+	private final String rip;
+	private final String filename;
+	private final int mtu;
+	private final int sws;
+	private final int stripes;
+	private boolean mapped;
+	private boolean sack;
+	private boolean probing;
+	private boolean compress;
+	private String cc = "newreno";
+	private PacketTrace trace;
+	private final LongAdder data = new LongAdder();
+	private final LongAdder packets = new LongAdder();
+	private final LongAdder retransmissions = new LongAdder();
+
+	/**
+	 * @param lp local port of the first stripe, the others use the
+	 * ports after it (0 for any)
+	 */
+	public StripedSender(int lp, int rp, String rip, String filename, int mtu, int sws, int stripes) {
+		this.lp = lp;
+		this.rp = rp;
+		this.rip = rip;
+		this.filename = filename;
+		this.mtu = mtu;
+		this.sws = sws;
+		this.stripes = stripes;
+	}
+
+	public void setMapped(boolean mapped) {
+		this.mapped = mapped;
+	}
+
+	public void setSack(boolean sack) {
+		this.sack = sack;
+	}
+
+	/**
+	 * Each stripe probes for larger segments, see Sender.setProbing.
+	 */
+	public void setProbing(boolean probing) {
+		this.probing = probing;
+	}
+
+	/**
+	 * Each stripe offers to deflate its segments, see Sender.setCompression.
+	 */
+	public void setCompression(boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * @param cc newreno, cubic or fixed, for each stripe
+	 */
+	public void setCongestionControl(String cc) {
+		this.cc = cc;
+	}
+
+	/**
+	 * @param trace shared by every stripe, null for none
+	 */
+	public void setTrace(PacketTrace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Sends every stripe and waits for them.
+	 *
+	 * @return true if all of them were acknowledged
+	 */
+	public boolean transfer() {
+		final long total = new File(filename).length();
+		final int maxDataSize = mtu - 20 - 8 - 24; // as Transport
+		final long segments = (total + maxDataSize - 1) / maxDataSize;
+		final long stripe = Math.max(1, (segments + stripes - 1) / stripes) * maxDataSize;
+		final long start = System.nanoTime();
+
+		ExecutorService pool = Threads.perTask(false, "stripe");
+		List<Future<Boolean>> results = new ArrayList<>();
+		for (int i = 0; i == 0 || i * stripe < total; i++) {
+			final int n = i;
+			final long offset = i * stripe;
+			results.add(pool.submit(() -> send(n, offset, Math.min(stripe, total - offset), total)));
+		}
+		boolean ok = true;
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				if (!results.get(i).get()) {
+					System.err.println("Stripe " + i + " was not delivered");
+					ok = false;
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				System.err.println("Stripe " + i + " failed: " + e);
+				ok = false;
+			}
+		}
+		pool.shutdown();
+		if (trace != null)
+			trace.close();
+
+		double secs = (System.nanoTime() - start) / 1e9;
+		String msg = "Stripes: " + results.size() + " of up to " + stripe + " bytes";
+		msg += "\nData Transferred: " + data.sum();
+		msg += "\nPackets sent: " + packets.sum();
+		msg += "\nNumber of Retransmissions: " + retransmissions.sum();
+		msg += String.format("\nTime: %.2fs, %.1f KB/s", secs, total / secs / 1024);
+		msg += ok ? "\nAll " + total + " bytes acknowledged" : "\nIncomplete";
+		System.out.println(msg);
+		return ok;
+	}
+
+	private boolean send(int i, long offset, long length, long total) throws IOException {
+		for (int tries = 0; tries < STRIPE_TRIES; tries++) {
+			// a retry comes from a new port, the receiver may still be holding the old connection
+			Sender s = new Sender(tries == 0 && lp > 0 ? lp + i : 0, rp, rip, filename, mtu, sws);
+			s.setStripe(offset, length, total);
+			s.setMapped(mapped);
+			s.setSack(sack);
+			s.setProbing(probing);
+			s.setCompression(compress);
+			s.setCongestionControl(CongestionControl.forName(cc, sws));
+			s.setTrace(trace);
+			s.setQuiet(true);
+			boolean ok = s.transfer();
+			data.add(s.metrics.getDataTransferred());
+			packets.add(s.metrics.getPacketsTransferred());
+			retransmissions.add(s.metrics.getRetransmissions());
+			if (ok)
+				return true;
+			System.err.println("Stripe " + i + " failed, sending it again");
+		}
+		return false;
+	}
+}
@@ -0,0 +1,171 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sends a file through a Relay for every combination of the given
+ * impairments and prints one line per run: completion time, goodput,
+ * retransmissions, bad checksums seen by both ends and whether the
+ * file arrived intact. The Sender and Receiver are separate JVMs
+ * (TCPend as run by hand), the relay runs in this one.
+ *
+ * java Sweep -f <file> [-m mtu] [-c sws] [-delay ms,..] [-jitter ms,..]
+ *   [-loss p,..] [-dup p,..] [-reorder p,..] [-corrupt p,..]
+ *   [-timeout s] [-seed n] [-- sender args]
+ */
+public class Sweep {
+
+	private static final Pattern RETRANSMISSIONS = Pattern.compile("Number of Retransmissions: (\\d+)");
+	private static final Pattern BAD_CHECKSUMS = Pattern.compile("Bad Checksum Packets: (\\d+)");
+
+	private String filename;
+	private int mtu = 1500;
+	private int sws = 64;
+	private double[] delays = {0, 20};
+	private double[] jitters = {0};
+	private double[] losses = {0, 0.01, 0.05};
+	private double[] dups = {0};
+	private double[] reorders = {0, 0.02};
+	private double[] corrupts = {0, 0.01};
+	private long timeout = 120;	// s per run
+	private long seed = 640;
+	private final List<String> senderArgs = new ArrayList<>();
+
+	private static double[] parseList(String arg) {
+		return Arrays.stream(arg.split(",")).mapToDouble(Double::parseDouble).toArray();
+	}
+
+	private static int freePort() throws IOException {
+		try (DatagramSocket s = new DatagramSocket(0)) {
+			return s.getLocalPort();
+		}
+	}
+
+	private static long find(Pattern p, String log) {
+		Matcher m = p.matcher(log);
+		return m.find() ? Long.parseLong(m.group(1)) : -1;
+	}
+
+	private static Process start(List<String> args, File log) throws IOException {
+		List<String> cmd = new ArrayList<>();
+		cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add("TCPend");
+		cmd.addAll(args);
+		return new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(log).start();
+	}
+
+	/**
+	 * One transfer through a relay with the given impairments.
+	 */
+	private String run(double delay, double jitter, double loss, double dup, double reorder, double corrupt)
+			throws IOException, InterruptedException {
+		File dir = Files.createTempDirectory("sweep").toFile();
+		File out = new File(dir, "out"), slog = new File(dir, "snd.log"), rlog = new File(dir, "rcv.log");
+		int rp = freePort(), sp = freePort();
+		Relay relay = new Relay(0, new InetSocketAddress("127.0.0.1", rp));
+		relay.setDelay(delay);
+		relay.setJitter(jitter);
+		relay.setLoss(loss);
+		relay.setDuplicate(dup);
+		relay.setReorder(reorder);
+		relay.setCorrupt(corrupt);
+		relay.setSeed(seed);
+		Thread relayThread = new Thread(relay, "relay");
+		relayThread.start();
+		String result;
+		try {
+			Process receiver = start(List.of("-p", "" + rp, "-m", "" + mtu, "-c", "" + sws,
+					"-f", out.getPath(), "-notrace"), rlog);
+			Thread.sleep(500); // let it bind
+			List<String> args = new ArrayList<>(List.of("-p", "" + sp, "-s", "127.0.0.1", "-a", "" + relay.getPort(),
+					"-f", filename, "-m", "" + mtu, "-c", "" + sws, "-notrace"));
+			args.addAll(senderArgs);
+			long start = System.nanoTime();
+			Process sender = start(args, slog);
+			boolean done = sender.waitFor(timeout, TimeUnit.SECONDS);
+			double secs = (System.nanoTime() - start) / 1e9;
+			if (!receiver.waitFor(done ? 10 : 0, TimeUnit.SECONDS))
+				receiver.destroyForcibly();
+			if (!done)
+				sender.destroyForcibly();
+			String snd = Files.readString(slog.toPath()), rcv = Files.readString(rlog.toPath());
+			boolean intact = done && sender.exitValue() == 0 && out.exists()
+					&& Files.mismatch(out.toPath(), new File(filename).toPath()) == -1;
+			long size = new File(filename).length();
+			result = String.format("%8.2f %10.1f %8d %8d %7s",
+					secs, size / secs / 1024, find(RETRANSMISSIONS, snd),
+					Math.max(0, find(BAD_CHECKSUMS, snd)) + Math.max(0, find(BAD_CHECKSUMS, rcv)),
+					!done ? "timeout" : intact ? "ok" : "FAILED");
+		} finally {
+			relay.close();
+			relayThread.join();
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+		return result;
+	}
+
+	private void sweep() throws IOException, InterruptedException {
+		System.out.printf("%s, %d bytes, mtu %d, sws %d %s\n", filename, new File(filename).length(), mtu, sws,
+				String.join(" ", senderArgs));
+		System.out.printf("%6s %6s %6s %6s %7s %7s | %8s %10s %8s %8s %7s\n", "delay", "jitter", "loss", "dup",
+				"reorder", "corrupt", "time(s)", "KB/s", "retrans", "badck", "result");
+		for (double delay : delays)
+			for (double jitter : jitters)
+				for (double loss : losses)
+					for (double dup : dups)
+						for (double reorder : reorders)
+							for (double corrupt : corrupts) {
+								System.out.printf("%6.0f %6.0f %6.3f %6.3f %7.3f %7.3f | ", delay, jitter, loss, dup, reorder, corrupt);
+								System.out.println(run(delay, jitter, loss, dup, reorder, corrupt));
+							}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Sweep s = new Sweep();
+		try {
+			int i = 0;
+			for (; i + 1 < args.length && !args[i].equals("--"); i += 2) {
+				String arg = args[i + 1];
+				switch (args[i]) {
+					case "-f": s.filename = arg; break;
+					case "-m": s.mtu = Integer.parseInt(arg); break;
+					case "-c": s.sws = Integer.parseInt(arg); break;
+					case "-delay": s.delays = parseList(arg); break;
+					case "-jitter": s.jitters = parseList(arg); break;
+					case "-loss": s.losses = parseList(arg); break;
+					case "-dup": s.dups = parseList(arg); break;
+					case "-reorder": s.reorders = parseList(arg); break;
+					case "-corrupt": s.corrupts = parseList(arg); break;
+					case "-timeout": s.timeout = Long.parseLong(arg); break;
+					case "-seed": s.seed = Long.parseLong(arg); break;
+					default:
+						System.err.println("Unexpected option: " + args[i]);
+						return;
+				}
+			}
+			if (i < args.length && args[i].equals("--"))
+				s.senderArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+		} catch (NumberFormatException e) {
+			System.err.println("Bad number: " + e.getMessage());
+			return;
+		}
+		if (s.filename == null) {
+			System.out.println("Expects arguments: java Sweep -f <file> [-m mtu] [-c sws] [-delay ms,..] [-jitter ms,..] "
+					+ "[-loss p,..] [-dup p,..] [-reorder p,..] [-corrupt p,..] [-timeout s] [-seed n] [-- sender args]");
+			return;
+		}
+		s.sweep();
+	}
+}
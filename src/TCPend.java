@@ -1,36 +1,86 @@
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.SocketException;
 
 
 public class TCPend {
 
 
     private static String getExpects() {
-        final String sexp = "Send: java TCPend -p <port> -s <remote ip> -a <remote port> -f <filename> -m <mtu> -c <sws>\n";
-        final String rexp = "Receive: java TCPend -p <port> -m <mtu> -c <sws> -f <filename>";
-        return "Expects arguments:\n" + sexp + rexp;
+        final String sexp = "Send: java TCPend -p <port> -s <remote ip> -a <remote port> -f <filename | -> -m <mtu> -c <sws> [-mmap] [-sack] [-pmtud] [-compress] [-resume] [-delta] [-cc newreno|cubic|fixed] [-stripes <n>] [-bufmax <bytes>] [-trace <file> | -notrace]\n";
+        final String rexp = "Receive: java TCPend -p <port> -m <mtu> -c <sws> -f <filename | -> [-pwrite | -striped] [-ackevery <segments>] [-ackdelay <ms>] [-bufmax <bytes>] [-trace <file> | -notrace]\n";
+        final String srvexp = "Receive from many senders: java TCPend -p <port> -m <mtu> -c <sws> -f <filename> -server [-threads <n>] [-trace <file> | -notrace]\n";
+        final String lsnexp = "Receive from many senders, a thread each: java TCPend -p <port> -m <mtu> -c <sws> -f <filename> -listen [-platform] [-trace <file> | -notrace]";
+        final String stdexp = "\n-f - sends stdin or receives to stdout, the receiver's output goes to stderr";
+        return "Expects arguments:\n" + sexp + rexp + srvexp + lsnexp + stdexp;
     }
 
-    public static void main(String[] args) throws SocketException {
+    public static void main(String[] args) throws IOException {
 
         if (args.length <= 0) System.out.println(getExpects());
         TransportBuilder tbuilder = new TransportBuilder();
 
         String popt = null;
         for (String arg : args) {
-            if (arg.startsWith("-")) {
+            if (arg.startsWith("-") && arg.length() > 1) {
                 popt = arg.substring(1);
+                if (tbuilder.addSwitch(popt))
+                    popt = null;
             } else if (popt != null && !tbuilder.add(popt, arg)) {
                 System.err.println("Error building Transport, bad args: " + popt + ", " + arg);
                 return;
             }
         }
 
-        Transport t = tbuilder.build();
+        if (tbuilder.isStream() && (tbuilder.isServer() || tbuilder.isListener() || tbuilder.isStriped())) {
+            System.err.println("-f - is for a single transfer");
+            return;
+        }
+        if (tbuilder.isStream() && !tbuilder.isSender())
+            System.setOut(System.err); // stdout is the data
+        if (tbuilder.isServer()) {
+            tbuilder.buildServer().run();
+            return;
+        }
+        if (tbuilder.isListener()) {
+            tbuilder.buildListener().run();
+            return;
+        }
+        if (tbuilder.isStriped()) {
+            boolean ok;
+            if (tbuilder.isSender()) {
+                ok = tbuilder.buildStripedSender().transfer();
+            } else {
+                StripedReceiver r = tbuilder.buildStripedReceiver();
+                r.run();
+                ok = r.isComplete();
+            }
+            if (!ok)
+                System.exit(1);
+            return;
+        }
+
+        Transport t;
+        try {
+            t = tbuilder.build();
+        } catch (IOException e) {
+            System.err.println("Could not start the transfer: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
         
 		if (!t.transfer()) {
 			System.err.println("Error sending all bytes");
+			System.exit(1);
 		}
+		if (t instanceof Sender && tbuilder.pmtud)
+			System.out.println("Segment Size: " + ((Sender) t).getSegmentSize());
+		if (t instanceof Sender && tbuilder.resume)
+			System.out.println("Resumed At: " + ((Sender) t).getResumeOffset());
+		if (t instanceof Sender && tbuilder.delta)
+			System.out.println("Delta Literal Bytes: " + ((Sender) t).getLiteralBytes());
 
 	}
 
@@ -48,16 +98,165 @@ public class TCPend {
 		private String filename;
 		private int mtu;   // max transmission unit
 		private int sws;    // sliding window size
+		private boolean mapped; // sender reads the file through a mapping
+		private boolean positional; // receiver writes segments at their offset
+		private boolean sack; // sender asks for selective acks
+		private boolean pmtud; // sender probes for larger segments
+		private boolean compress; // sender deflates segments
+		private boolean resume; // sender skips what the receiver kept of an earlier transfer
+		private boolean delta; // sender sends a delta against the receiver's copy
+		private String cc = "newreno"; // sender congestion control, sws is the upper bound
+		private String traceFile; // binary packet trace, text on stdout when null
+		private boolean noTrace;
+		private boolean server; // receive from any number of senders
+		private int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+		private boolean listen; // receive from any number of senders, a transfer per thread
+		private boolean platform; // listener threads are platform threads even where virtual ones exist
+		private int stripes; // sender splits the file over this many flows
+		private boolean striped; // receiver takes a file sent in stripes
+		private int ackEvery = 2; // receiver acks every this many in order segments
+		private int ackDelay = 10; // or this many ms after the first one
+		private int bufferLimit; // socket buffers are not grown past it, 0 for the default
 
-		Transport build() throws SocketException {
-			return isSender() ? new Sender(lp, rp, rip, filename, mtu, sws) :
-				new Receiver(lp, rp, filename, mtu, sws);
+		Transport build() throws IOException {
+			Transport t;
+			if (isSender()) {
+				Sender s = isStream() ? new Sender(lp, rp, rip, new FileInputStream(FileDescriptor.in).getChannel(), mtu, sws)
+						: new Sender(lp, rp, rip, filename, mtu, sws);
+				s.setMapped(mapped);
+				s.setSack(sack);
+				s.setProbing(pmtud);
+				s.setCompression(compress);
+				s.setResume(resume);
+				s.setDelta(delta);
+				s.setCongestionControl(CongestionControl.forName(cc, sws));
+				t = s;
+			} else {
+				Receiver r = isStream() ? new Receiver(lp, rp, new FileOutputStream(FileDescriptor.out).getChannel(), mtu, sws)
+						: new Receiver(lp, rp, filename, mtu, sws);
+				r.setPositional(positional);
+				r.setDelayedAck(ackEvery, ackDelay);
+				t = r;
+			}
+			if (bufferLimit > 0)
+				t.setBufferLimit(bufferLimit);
+			t.setTrace(buildTrace());
+			return t;
+		}
+
+		ReceiverServer buildServer() throws IOException {
+			ReceiverServer s = new ReceiverServer(lp, filename, mtu, sws, threads);
+			s.setTrace(buildTrace());
+			return s;
+		}
+
+		TransferListener buildListener() throws IOException {
+			TransferListener l = new TransferListener(lp, filename, mtu, sws, !platform);
+			l.setTrace(buildTrace());
+			return l;
+		}
+
+		StripedSender buildStripedSender() {
+			StripedSender s = new StripedSender(lp, rp, rip, filename, mtu, sws, stripes);
+			s.setMapped(mapped);
+			s.setSack(sack);
+			s.setProbing(pmtud);
+			s.setCompression(compress);
+			s.setCongestionControl(cc);
+			s.setTrace(buildTrace());
+			return s;
+		}
+
+		StripedReceiver buildStripedReceiver() throws IOException {
+			StripedReceiver r = new StripedReceiver(lp, filename, mtu, sws);
+			r.setTrace(buildTrace());
+			return r;
+		}
+
+		private PacketTrace buildTrace() {
+			if (noTrace)
+				return null;
+			try {
+				return traceFile == null ? PacketTrace.text(System.out) : PacketTrace.binary(traceFile);
+			} catch (IOException e) {
+				System.err.println("Could not open trace " + traceFile + ": " + e.getMessage());
+				System.exit(1);
+				return null;
+			}
+		}
+
+		public boolean isServer() {
+			return server && !isSender();
+		}
+
+		public boolean isListener() {
+			return listen && !isSender();
+		}
+
+		public boolean isStriped() {
+			return isSender() ? stripes > 0 : striped;
 		}
 
 		public boolean isSender() {
 			return rip != null;
 		}
 
+		/**
+		 * @return true for -f -, stdin or stdout in place of a file
+		 */
+		public boolean isStream() {
+			return "-".equals(filename);
+		}
+
+		/**
+		 * Options that take no argument.
+		 *
+		 * @return true if opt was a switch
+		 */
+		public boolean addSwitch(String opt) {
+			switch (opt) {
+				case "mmap":
+					mapped = true;
+					break;
+				case "pwrite":
+					positional = true;
+					break;
+				case "sack":
+					sack = true;
+					break;
+				case "pmtud":
+					pmtud = true;
+					break;
+				case "compress":
+					compress = true;
+					break;
+				case "resume":
+					resume = true;
+					break;
+				case "delta":
+					delta = true;
+					break;
+				case "notrace":
+					noTrace = true;
+					break;
+				case "server":
+					server = true;
+					break;
+				case "listen":
+					listen = true;
+					break;
+				case "platform":
+					platform = true;
+					break;
+				case "striped":
+					striped = true;
+					break;
+				default:
+					return false;
+			}
+			return true;
+		}
+
 		/**
 		 *  @param opt flag char
 		 *  @param arg passed arg for the flag
@@ -86,6 +285,34 @@ public class TCPend {
 					sws = tryParseInt(arg);
 					if (sws == parseIntFailure) return false;
 					break;
+				case "cc":
+					if (!arg.equals("newreno") && !arg.equals("cubic") && !arg.equals("fixed"))
+						return false;
+					cc = arg;
+					break;
+				case "trace":
+					traceFile = arg;
+					break;
+				case "threads":
+					threads = tryParseInt(arg);
+					if (threads == parseIntFailure) return false;
+					break;
+				case "ackevery":
+					ackEvery = tryParseInt(arg);
+					if (ackEvery == parseIntFailure) return false;
+					break;
+				case "ackdelay":
+					ackDelay = tryParseInt(arg);
+					if (ackDelay == parseIntFailure) return false;
+					break;
+				case "stripes":
+					stripes = tryParseInt(arg);
+					if (stripes == parseIntFailure) return false;
+					break;
+				case "bufmax":
+					bufferLimit = tryParseInt(arg);
+					if (bufferLimit == parseIntFailure) return false;
+					break;
 				default:
 					System.err.println("Unexpected option: " + opt + "\n" + getExpects());
 					return false;
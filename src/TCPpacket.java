@@ -9,13 +9,37 @@ import java.util.Arrays;
  * Acknowledgment [4]
  * Timestamp [8]
  * Length | S | F | A [4]
- * All zeroes | Checksum (split evenly) [4]
+ * Options length | Checksum (split evenly) [4]
  * Total: 24 bytes
+ * Options [specified by options length]
  * Data [specified by length]
  *
  * The width (each line above) is 8 bytes (64 bits)
  *
  * Receiver will use the sequence numbers
+ *
+ * The options length was all zeroes by the original specification.
+ * The options marked SYN are offers, the SYN may carry them
+ * whatever the peer supports, and the SYN+ACK answers with the ones
+ * it takes. The others are only sent once both ends agreed to them.
+ * A peer from before options fails the checksum of a SYN that
+ * carries any. Each option is kind [1] | length [1] | value,
+ * unknown kinds are skipped:
+ *
+ * Max segment (SYN): kind | length | data bytes [2]
+ * SACK permitted (SYN) [2]
+ * SACK: kind | length | (start seq [4] | end seq [4]) per block
+ * Stripe (SYN): kind | length | file offset [8] | file length [8]
+ * Probe: kind | length | probe size [4], on a padding only probe and its ack
+ * Window: kind | length | bytes the receiver has room for past the ack [4],
+ *   offered with 0 in every SYN, then on the acks once agreed
+ * Compression permitted (SYN) [2]
+ * Resume (SYN): kind | length | file length [8] | file modified time [8]
+ * Resume (SYN ACK): kind | length | bytes the receiver already has [8]
+ *
+ * The top bit of the length word marks data that was deflated
+ * (once both ends agreed to it), the length is of the compressed
+ * bytes on the wire.
  */
 public class TCPpacket {
 
@@ -23,13 +47,46 @@ public class TCPpacket {
 	public static int FLAG_ACK = 0x1;
 	public static int FLAG_FIN = 0x2;
 	public static int FLAG_SYN = 0x4;
+	public static int FLAG_COMPRESSED = 0x80000000;
+	public static final int MAX_SACK_BLOCKS = 4;
+	private static final int OPTIONS_OFFSET = 20;
+	private static final int OPT_MAX_SEGMENT = 2;
+	private static final int CHECKSUM_OFFSET = 22;
+	private static final int OPT_SACK_PERMITTED = 4;
+	private static final int OPT_SACK = 5;
+	private static final int OPT_STRIPE = 6;
+	private static final int OPT_PROBE = 7;
+	private static final int OPT_WINDOW = 8;
+	private static final int OPT_COMPRESS_PERMITTED = 9;
+	private static final int OPT_RESUME = 10;
+	private static final int OPT_DELTA = 11;
+	private static final int OPT_FETCH = 12;
 
 	private int sequenceNumber;
 	private int ack;
 	private long timestamp;
 	private int lengthFlags; // need to bit shift left 3 times
 	private short checksum; // first 4 bytes should be 0
+	private boolean checksumValid; // checksum matches the current fields
 	private byte[] data;
+	private ByteBuffer payload; // used instead of data when set, not copied
+	private boolean sackPermitted;
+	private int[] sack; // start, end pairs of the blocks, allocated when first used
+	private int sackBlocks;
+	private long stripeOffset = -1;	// -1 when the connection is not a stripe
+	private long stripeTotal;
+	private int maxSegment;	// 0 when not sent
+	private int probe;	// 0 when not a probe
+	private int window = -1;	// -1 when not sent
+	private boolean compressPermitted;
+	private long resumeLength = -1;	// -1 when not sent
+	private long resumeModified;
+	private long resumeOffset = -1;	// -1 when not sent
+	private boolean deltaPermitted;
+	private int deltaBlock;	// 0 when not sent
+	private long basisLength;
+	private long fetch = -1;	// -1 when not sent
+	private int fetchLength;
 
 	/**
 	 * Creates a new TCPPacket
@@ -61,73 +118,199 @@ public class TCPpacket {
 	 */
 	public static TCPpacket deserialize(byte[] src) throws SerialException {
 		TCPpacket p = new TCPpacket();
-		if (src.length < HEADERN)
-			throw new SerialException("Cannot deserialize, src is too small to be a TCPpacket");
-		// no mutations in original array this way
-		ByteBuffer buf = ByteBuffer.wrap(Arrays.copyOf(src, src.length));
-		p.sequenceNumber = buf.getInt();
-		p.ack = buf.getInt();
-		p.timestamp = buf.getLong();
-		p.lengthFlags = buf.getInt();
-		// read the checksum, then set to zero for checksum validation
-		buf.getShort();
-		buf.mark();
-		short ck = buf.getShort();
-		p.checksum = ck;
-
-		buf.reset();
-		buf.putShort((short) 0);
-
-		p.data = new byte[p.getDataLen()];
-		if (buf.remaining() < p.getDataLen()) {
-			System.err.println("Packet read in is " + src.length + " bytes, but is expected to be " + (HEADERN + p.getDataLen()) + " bytes");
-			throw new SerialException("Packet is incorrect size");
-		}
-		buf.get(p.data, 0, p.getDataLen());
-
-		// verify the checksum
-		if (p.getDataLen() % 2 == 1)
-			buf.get();
-		buf.flip();
-		int cksm = calcChecksum(buf.duplicate());
-		if (p.checksum != cksm)
-			throw new ChecksumException("Checksum was invalid: " + cksm + " != " + p.checksum);
+		p.decode(ByteBuffer.wrap(src));
 		return p;
 	}
 
 	/**
-	 * The standard 1's complement checksum
-	 * We treat the passed bytes as a sequence
-	 * of 2 byte integers ('short' in java)
-	 * and calc the checksum based on the sum
-	 * of the data.
+	 * Reads a packet from the bytes between the position and
+	 * limit of src into this packet. The src buffer is not modified
+	 * (its position is left untouched) and the data array of this
+	 * packet is reused when it is large enough, so decoding into
+	 * the same packet repeatedly does not allocate.
 	 *
-	 * The alg I use here is taken from the Systems
-	 * Approach textbook, implemented in java using
-	 * a ByteBuffer.
-	 *
-	 * I return an integer (4 bytes), but it is wrapped as if it were
-	 * a 2 byte integer. Thus it returns 6 zero bytes followed by the 2 byte
-	 * checksum.
-	 *
-	 * @see https://book.systemsapproach.org/direct/error.html
+	 * @return this packet
 	 */
-	private static short calcChecksum(ByteBuffer buf) {
-		buf.rewind();
-		if (buf.remaining() % 2 == 1) {
-			throw new IllegalStateException("buffer needs to be padded cannot checksum odd length");
+	public TCPpacket decode(ByteBuffer src) throws SerialException {
+		final int start = src.position();
+		final int n = src.remaining();
+		checksumValid = false;
+		payload = null;
+		if (n < HEADERN)
+			throw new SerialException("Cannot deserialize, src is too small to be a TCPpacket");
+		sequenceNumber = src.getInt(start);
+		ack = src.getInt(start + 4);
+		timestamp = src.getLong(start + 8);
+		lengthFlags = src.getInt(start + 16);
+		checksum = src.getShort(start + CHECKSUM_OFFSET);
+
+		final int optLen = src.getShort(start + OPTIONS_OFFSET) & 0xFFFF;
+		final int hlen = HEADERN + optLen;
+		final int len = getDataLen();
+		if (len < 0 || n - hlen < len) {
+			System.err.println("Packet read in is " + n + " bytes, but is expected to be " + (hlen + len) + " bytes");
+			throw new SerialException("Packet is incorrect size");
 		}
+		decodeOptions(src, start + HEADERN, start + hlen);
+		if (data.length < len)
+			data = new byte[len];
+		src.get(start + hlen, data, 0, len);
+
+		// verify the checksum, summed with the checksum field included
+		checksumValid = Checksum.verify(src, start, start + hlen + len);
+		if (!checksumValid)
+			throw new ChecksumException("Checksum was invalid: " + checksum);
+		return this;
+	}
 
-		int sum = 0;
-		while (buf.hasRemaining()) {
-			sum += buf.getShort();
-			if ((sum & 0xFFFF0000) > 0) { // if carry occured (for a short (2 bytes))
-				// wrap carry
-				sum &= 0xFFFF; 
-				sum++;
+	private void decodeOptions(ByteBuffer src, int from, int to) throws SerialException {
+		sackPermitted = false;
+		sackBlocks = 0;
+		stripeOffset = -1;
+		maxSegment = 0;
+		probe = 0;
+		window = -1;
+		compressPermitted = false;
+		resumeLength = -1;
+		resumeOffset = -1;
+		deltaPermitted = false;
+		deltaBlock = 0;
+		fetch = -1;
+		int i = from;
+		while (i + 2 <= to) {
+			final int kind = src.get(i) & 0xFF;
+			final int len = src.get(i + 1) & 0xFF;
+			if (len < 2 || i + len > to)
+				throw new SerialException("Bad option length " + len + " for kind " + kind);
+			if (kind == OPT_SACK_PERMITTED) {
+				sackPermitted = true;
+			} else if (kind == OPT_SACK) {
+				int blocks = Math.min((len - 2) / 8, MAX_SACK_BLOCKS);
+				for (int b = 0; b < blocks; b++)
+					addSackBlock(src.getInt(i + 2 + 8 * b), src.getInt(i + 6 + 8 * b));
+			} else if (kind == OPT_STRIPE && len == 18) {
+				stripeOffset = src.getLong(i + 2);
+				stripeTotal = src.getLong(i + 10);
+			} else if (kind == OPT_MAX_SEGMENT && len == 4) {
+				maxSegment = src.getShort(i + 2) & 0xFFFF;
+			} else if (kind == OPT_PROBE && len == 6) {
+				probe = src.getInt(i + 2);
+			} else if (kind == OPT_WINDOW && len == 6) {
+				window = src.getInt(i + 2);
+			} else if (kind == OPT_COMPRESS_PERMITTED) {
+				compressPermitted = true;
+			} else if (kind == OPT_RESUME && len == 18) {
+				resumeLength = src.getLong(i + 2);
+				resumeModified = src.getLong(i + 10);
+			} else if (kind == OPT_RESUME && len == 10) {
+				resumeOffset = src.getLong(i + 2);
+			} else if (kind == OPT_DELTA && len == 2) {
+				deltaPermitted = true;
+			} else if (kind == OPT_DELTA && len == 14) {
+				deltaBlock = src.getInt(i + 2);
+				basisLength = src.getLong(i + 6);
+			} else if (kind == OPT_FETCH && len == 14) {
+				fetch = src.getLong(i + 2);
+				fetchLength = src.getInt(i + 10);
 			}
+			i += len;
 		}
-		return (short) ~(sum & 0xFFFF);
+	}
+
+	private void putOptions(ByteBuffer dst) {
+		if (maxSegment > 0) {
+			dst.put((byte) OPT_MAX_SEGMENT);
+			dst.put((byte) 4);
+			dst.putShort((short) maxSegment);
+		}
+		if (sackPermitted) {
+			dst.put((byte) OPT_SACK_PERMITTED);
+			dst.put((byte) 2);
+		}
+		if (sackBlocks > 0) {
+			dst.put((byte) OPT_SACK);
+			dst.put((byte) (2 + 8 * sackBlocks));
+			for (int b = 0; b < 2 * sackBlocks; b++)
+				dst.putInt(sack[b]);
+		}
+		if (stripeOffset >= 0) {
+			dst.put((byte) OPT_STRIPE);
+			dst.put((byte) 18);
+			dst.putLong(stripeOffset);
+			dst.putLong(stripeTotal);
+		}
+		if (probe > 0) {
+			dst.put((byte) OPT_PROBE);
+			dst.put((byte) 6);
+			dst.putInt(probe);
+		}
+		if (window >= 0) {
+			dst.put((byte) OPT_WINDOW);
+			dst.put((byte) 6);
+			dst.putInt(window);
+		}
+		if (compressPermitted) {
+			dst.put((byte) OPT_COMPRESS_PERMITTED);
+			dst.put((byte) 2);
+		}
+		if (resumeLength >= 0) {
+			dst.put((byte) OPT_RESUME);
+			dst.put((byte) 18);
+			dst.putLong(resumeLength);
+			dst.putLong(resumeModified);
+		}
+		if (resumeOffset >= 0) {
+			dst.put((byte) OPT_RESUME);
+			dst.put((byte) 10);
+			dst.putLong(resumeOffset);
+		}
+		if (deltaBlock > 0) {
+			dst.put((byte) OPT_DELTA);
+			dst.put((byte) 14);
+			dst.putInt(deltaBlock);
+			dst.putLong(basisLength);
+		} else if (deltaPermitted) {
+			dst.put((byte) OPT_DELTA);
+			dst.put((byte) 2);
+		}
+		if (fetch >= 0) {
+			dst.put((byte) OPT_FETCH);
+			dst.put((byte) 14);
+			dst.putLong(fetch);
+			dst.putInt(fetchLength);
+		}
+	}
+
+	/**
+	 * Bytes of options after the 24 byte header, always even.
+	 */
+	public int getOptionsLen() {
+		int len = 0;
+		if (maxSegment > 0)
+			len += 4;
+		if (sackPermitted)
+			len += 2;
+		if (sackBlocks > 0)
+			len += 2 + 8 * sackBlocks;
+		if (stripeOffset >= 0)
+			len += 18;
+		if (probe > 0)
+			len += 6;
+		if (window >= 0)
+			len += 6;
+		if (compressPermitted)
+			len += 2;
+		if (resumeLength >= 0)
+			len += 18;
+		if (resumeOffset >= 0)
+			len += 10;
+		if (deltaBlock > 0)
+			len += 14;
+		else if (deltaPermitted)
+			len += 2;
+		if (fetch >= 0)
+			len += 14;
+		return len;
 	}
 
 	public static String toString(byte[] data) {
@@ -137,7 +320,7 @@ public class TCPpacket {
 		sb.append("Ack: ").append(buf.getInt()).append('\n');
 		sb.append("time: ").append(buf.getLong()).append('\n');
 		long lengthFlags = buf.getInt();
-		long length = lengthFlags >> 3;
+		long length = (lengthFlags & ~FLAG_COMPRESSED) >> 3;
 		sb.append("length: ").append(length).append('\n');
 		if ((lengthFlags & FLAG_SYN) > 0)
 			sb.append("S");
@@ -146,10 +329,12 @@ public class TCPpacket {
 		if ((lengthFlags & FLAG_FIN) > 0)
 			sb.append("F");
 		sb.append('\n');
-		// read the checksum, then set to zero for checksum validation
-		buf.getShort(); // get rid of zeroes
+		int optLen = buf.getShort() & 0xFFFF;
 		sb.append("chksum: ").append(buf.getShort());
 		sb.append('\n');
+		sb.append("options: ").append(optLen);
+		sb.append('\n');
+		buf.position(Math.min(buf.limit(), buf.position() + optLen));
 		System.out.println("Length: " + length);
 		System.out.println("remaining: " + buf.remaining());
 
@@ -164,15 +349,23 @@ public class TCPpacket {
 	}
 
 	public void setCurrentTime() {
-		this.timestamp = System.nanoTime();
+		setTime(System.nanoTime());
 	}
 
+	/**
+	 * Changing only the time (as is done before a retransmit)
+	 * updates the cached checksum incrementally instead of
+	 * summing the whole packet again on the next encode.
+	 */
 	public void setTime(long time) {
+		if (checksumValid)
+			checksum = Checksum.update(checksum, this.timestamp, time);
 		this.timestamp = time;
 	}
 
 	public void setSeq(int num){
 		this.sequenceNumber = num;
+		checksumValid = false;
 	}
 
 	public int getSeq() {
@@ -181,6 +374,7 @@ public class TCPpacket {
 
 	public void setAckNum(int num){
 		this.ack = num;
+		checksumValid = false;
 	}
 
 	public int getAckNum() {
@@ -192,7 +386,7 @@ public class TCPpacket {
 	}
 
 	public int getDataLen() {
-		return this.lengthFlags >> 3;
+		return (this.lengthFlags & ~FLAG_COMPRESSED) >> 3;
 	}
 
 	public void setData(byte[] data) {
@@ -200,22 +394,72 @@ public class TCPpacket {
 	}
 
 	public void setData(byte[] d, int offset, int length) {
-		this.data = Arrays.copyOfRange(d, offset, length);
-		long flags = this.lengthFlags & 0x7; // 0x7 = 0111
-		this.lengthFlags = this.data.length;
+		this.data = Arrays.copyOfRange(d, offset, offset + length);
+		this.payload = null;
+		setDataLen(length);
+	}
+
+	/**
+	 * Uses the bytes between the position and limit of buf as the
+	 * data without copying them (such as a slice of a mapped file).
+	 * The bytes and the position/limit of buf must not change while
+	 * this packet is being sent.
+	 */
+	public void setData(ByteBuffer buf) {
+		this.payload = buf;
+		setDataLen(buf.remaining());
+	}
+
+	/**
+	 * Takes the first length bytes of d as the data without copying
+	 * them, d must not be changed while this packet is in use.
+	 *
+	 * @return the array that held the data, for reuse
+	 */
+	public byte[] exchangeData(byte[] d, int length) {
+		byte[] old = this.data;
+		this.data = d;
+		this.payload = null;
+		setDataLen(length);
+		return old;
+	}
+
+	private void setDataLen(int length) {
+		long flags = this.lengthFlags & (0x7 | FLAG_COMPRESSED); // 0x7 = 0111
+		this.lengthFlags = length;
 		this.lengthFlags = this.lengthFlags << 3;
 		// reset the flags
 		this.lengthFlags += flags; 
+		checksumValid = false;
 	}
 
 	public byte[] copyData() {
-		return Arrays.copyOf(data, data.length);
+		if (payload != null) {
+			byte[] copy = new byte[getDataLen()];
+			payload.get(payload.position(), copy);
+			return copy;
+		}
+		return Arrays.copyOf(data, getDataLen());
 	}
 
+	/**
+	 * The backing array, only the first getDataLen() bytes
+	 * are the payload when the packet was decoded into a reused packet.
+	 * Writing to it invalidates the cached checksum, call setData instead.
+	 */
 	public byte[] getData() {
+		if (payload != null)
+			data = copyData();
 		return data;
 	}
 
+	/**
+	 * @return the buffer passed to setData(ByteBuffer), or null
+	 */
+	public ByteBuffer getPayload() {
+		return payload;
+	}
+
 	/**
 	 * Byte Sequence Number [4]
 	 * Acknowledgment [4]
@@ -227,27 +471,332 @@ public class TCPpacket {
 	 *
 	 */
 	public byte[] serialize() {
-		// length is padded when needed - default is 0
-		final int len = HEADERN + data.length + (data.length % 2);
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		buf.putInt(sequenceNumber);
-		buf.putInt(ack);
-		buf.putLong(timestamp);
-		buf.putInt(lengthFlags);
-		buf.putShort((short)0);
-		buf.mark();     // position at start of checksum
-		buf.putShort((short)0); // placeholder for checksum
-		buf.put(data);
-		checksum = calcChecksum(buf.duplicate());
-		buf.reset();    // rewrite at checksum
-		buf.putShort(checksum);
+		ByteBuffer buf = ByteBuffer.allocate(getSerialLen());
+		encode(buf);
 		return buf.array();
 	}
 
+	/**
+	 * The number of bytes encode(ByteBuffer) writes,
+	 * the length is padded when needed.
+	 */
+	public int getSerialLen() {
+		final int len = getDataLen();
+		return HEADERN + getOptionsLen() + len + (len % 2);
+	}
+
+	/**
+	 * Writes this packet into dst starting at its position and
+	 * advances the position past the packet. Nothing is allocated,
+	 * so a single (direct) buffer can be reused for every send.
+	 *
+	 * @return the number of bytes written
+	 */
+	public int encode(ByteBuffer dst) {
+		final int start = dst.position();
+		final int len = getDataLen();
+		final int n = getSerialLen();
+		if (dst.remaining() < n)
+			throw new IllegalArgumentException("Buffer has " + dst.remaining() + " bytes remaining, packet needs " + n);
+		putHeader(dst);
+		if (payload != null) {
+			dst.put(dst.position(), payload, payload.position(), len);
+			dst.position(dst.position() + len);
+		} else {
+			dst.put(data, 0, len);
+		}
+		if (len % 2 == 1)
+			dst.put((byte)0);
+		if (!checksumValid) {
+			checksum = Checksum.checksum(dst, start, start + n);
+			checksumValid = true;
+		}
+		dst.putShort(start + CHECKSUM_OFFSET, checksum);
+		return n;
+	}
+
+	/**
+	 * Writes only the header into dst, the checksum still covers the
+	 * data. Meant for a gathering write of the header followed by the
+	 * setData(ByteBuffer) payload, where the odd byte is not padded
+	 * (the checksum is the same either way).
+	 *
+	 * @return the number of bytes written
+	 */
+	public int encodeHeader(ByteBuffer dst) {
+		if (payload == null)
+			throw new IllegalStateException("encodeHeader needs the data set with setData(ByteBuffer)");
+		final int start = dst.position();
+		putHeader(dst);
+		final int hlen = dst.position() - start;
+		if (!checksumValid) {
+			long sum = Checksum.sum(dst, start, start + hlen);
+			sum += Checksum.sum(payload, payload.position(), payload.limit());
+			checksum = (short) ~Checksum.fold(sum);
+			checksumValid = true;
+		}
+		dst.putShort(start + CHECKSUM_OFFSET, checksum);
+		return hlen;
+	}
+
+	private void putHeader(ByteBuffer dst) {
+		dst.putInt(sequenceNumber);
+		dst.putInt(ack);
+		dst.putLong(timestamp);
+		dst.putInt(lengthFlags);
+		dst.putShort((short) getOptionsLen());
+		dst.putShort((short)0); // placeholder for checksum
+		putOptions(dst);
+	}
+
+	/**
+	 * Sent on a SYN (and SYN ACK) by an end that understands SACK.
+	 */
+	public void setSackPermitted(boolean permitted) {
+		this.sackPermitted = permitted;
+		checksumValid = false;
+	}
+
+	public boolean isSackPermitted() {
+		return sackPermitted;
+	}
+
+	/**
+	 * Sent on a SYN (and SYN ACK) by an end that can take deflated data.
+	 */
+	public void setCompressPermitted(boolean permitted) {
+		this.compressPermitted = permitted;
+		checksumValid = false;
+	}
+
+	public boolean isCompressPermitted() {
+		return compressPermitted;
+	}
+
+	/**
+	 * Marks the data as deflated, see SegmentCompressor.
+	 */
+	public void setCompressed(boolean compressed) {
+		if (compressed)
+			this.lengthFlags |= FLAG_COMPRESSED;
+		else
+			this.lengthFlags &= ~FLAG_COMPRESSED;
+		checksumValid = false;
+	}
+
+	public boolean isCompressed() {
+		return (this.lengthFlags & FLAG_COMPRESSED) != 0;
+	}
+
+	/**
+	 * Sent on a SYN by a sender that can pick up where an earlier
+	 * transfer of the same file stopped, the length and modified
+	 * time tell the receiver whether it is the same file.
+	 */
+	public void setResume(long length, long modified) {
+		this.resumeLength = length;
+		this.resumeModified = modified;
+		checksumValid = false;
+	}
+
+	public boolean hasResume() {
+		return resumeLength >= 0;
+	}
+
+	public long getResumeLength() {
+		return resumeLength;
+	}
+
+	public long getResumeModified() {
+		return resumeModified;
+	}
+
+	/**
+	 * Sent on the SYN ACK in answer to a resume, seq 1 is this many
+	 * bytes into the file (0 to start over).
+	 */
+	public void setResumeOffset(long offset) {
+		this.resumeOffset = offset;
+		checksumValid = false;
+	}
+
+	/**
+	 * @return the offset or -1 when the receiver did not answer a resume
+	 */
+	public long getResumeOffset() {
+		return resumeOffset;
+	}
+
+	/**
+	 * Sent on a SYN by a sender that can send a delta against the
+	 * copy of the file the receiver already has.
+	 */
+	public void setDeltaPermitted(boolean permitted) {
+		this.deltaPermitted = permitted;
+		checksumValid = false;
+	}
+
+	public boolean isDeltaPermitted() {
+		return deltaPermitted;
+	}
+
+	/**
+	 * Sent on the SYN ACK in answer to a delta permitted: the receiver
+	 * has basisLength bytes of the file, hashed in blocks of block
+	 * bytes (see DeltaSignature), and takes a delta of it.
+	 */
+	public void setDelta(int block, long basisLength) {
+		this.deltaBlock = block;
+		this.basisLength = basisLength;
+		checksumValid = false;
+	}
+
+	/**
+	 * @return the block size, 0 if the receiver did not take a delta
+	 */
+	public int getDeltaBlock() {
+		return deltaBlock;
+	}
+
+	public long getBasisLength() {
+		return basisLength;
+	}
+
+	/**
+	 * Asks for length bytes of the receiver's signature from offset,
+	 * and marks the answer that carries them as data. An answer without
+	 * data means the signature is not ready yet.
+	 */
+	public void setFetch(long offset, int length) {
+		this.fetch = offset;
+		this.fetchLength = length;
+		checksumValid = false;
+	}
+
+	/**
+	 * @return the offset, -1 if this is not a fetch or its answer
+	 */
+	public long getFetch() {
+		return fetch;
+	}
+
+	public int getFetchLength() {
+		return fetchLength;
+	}
+
+	/**
+	 * Sent on a SYN when the connection carries only part of a file,
+	 * the data (seq 1 on) goes at offset in a file of total bytes.
+	 */
+	public void setStripe(long offset, long total) {
+		this.stripeOffset = offset;
+		this.stripeTotal = total;
+		checksumValid = false;
+	}
+
+	public boolean hasStripe() {
+		return stripeOffset >= 0;
+	}
+
+	public long getStripeOffset() {
+		return stripeOffset;
+	}
+
+	public long getStripeTotal() {
+		return stripeTotal;
+	}
+
+	/**
+	 * Sent on a SYN by an end that probes for larger segments (see
+	 * Sender.setProbing), and on the SYN+ACK with the most data bytes
+	 * the receiver takes in one segment. At most 65535.
+	 */
+	public void setMaxSegment(int dataBytes) {
+		this.maxSegment = dataBytes;
+		checksumValid = false;
+	}
+
+	/**
+	 * @return the max segment option, 0 if there was none
+	 */
+	public int getMaxSegment() {
+		return maxSegment;
+	}
+
+	/**
+	 * Marks the packet as a path MTU probe of size data bytes, the
+	 * data is padding and never written. The ack of a probe echoes it.
+	 */
+	public void setProbe(int size) {
+		this.probe = size;
+		checksumValid = false;
+	}
+
+	/**
+	 * @return the probe size, 0 if this is not a probe or its ack
+	 */
+	public int getProbe() {
+		return probe;
+	}
+
+	/**
+	 * The receive window: on a SYN it says the end understands the
+	 * option, on the SYN+ACK and every ack after it the bytes past the
+	 * ack number the receiver has room for. -1 to leave it out.
+	 */
+	public void setWindow(int bytes) {
+		this.window = bytes;
+		checksumValid = false;
+	}
+
+	/**
+	 * @return the window option, -1 if there was none
+	 */
+	public int getWindow() {
+		return window;
+	}
+
+	public void clearSack() {
+		if (sackBlocks > 0)
+			checksumValid = false;
+		sackBlocks = 0;
+	}
+
+	/**
+	 * Reports [start, end) as received out of order, blocks beyond
+	 * MAX_SACK_BLOCKS are dropped.
+	 *
+	 * @return false if the block was dropped
+	 */
+	public boolean addSackBlock(int start, int end) {
+		if (sackBlocks >= MAX_SACK_BLOCKS)
+			return false;
+		if (sack == null)
+			sack = new int[2 * MAX_SACK_BLOCKS];
+		sack[2 * sackBlocks] = start;
+		sack[2 * sackBlocks + 1] = end;
+		sackBlocks++;
+		checksumValid = false;
+		return true;
+	}
+
+	public int getSackBlocks() {
+		return sackBlocks;
+	}
+
+	public int getSackStart(int block) {
+		return sack[2 * block];
+	}
+
+	public int getSackEnd(int block) {
+		return sack[2 * block + 1];
+	}
+
 	public void setFlag(int flag) {
 		if (flag > FLAG_SYN)
 			throw new IllegalArgumentException(String.format("Invalid flag: %x\n", flag));
 		this.lengthFlags |= flag;
+		checksumValid = false;
 	}
 
 	public void setSyn() {
@@ -285,6 +834,7 @@ public class TCPpacket {
 	public void clearFlags() {
 		// 0x8 = 1000
 		this.lengthFlags &= 0x8;
+		checksumValid = false;
 	}
 
 
@@ -1,3 +1,6 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
 public class Test {
 
 	private static boolean testSerialize() {
@@ -33,6 +36,921 @@ public class Test {
 			p.getDataLen() == d.getDataLen();
 	}
 
+	/**
+	 * Encodes two packets through the same direct buffer and
+	 * decodes them into the same reused packet.
+	 */
+	private static boolean testEncodeDecode() {
+		ByteBuffer buf = ByteBuffer.allocateDirect(1500);
+		TCPpacket reused = new TCPpacket();
+		byte[] big = new byte[101];
+		for (int i = 0; i < big.length; i++)
+			big[i] = (byte) (i * 7);
+		byte[] small = {1, 2, 3};
+		byte[][] datas = {big, small};
+
+		for (byte[] pdata : datas) {
+			TCPpacket p = new TCPpacket();
+			p.setAck();
+			p.setSeq(pdata.length);
+			p.setAckNum(12);
+			p.setCurrentTime();
+			p.setData(pdata);
+			buf.clear();
+			if (p.encode(buf) != p.getSerialLen())
+				return false;
+			buf.flip();
+			try {
+				reused.decode(buf);
+			} catch (SerialException e) {
+				System.err.println(e.getMessage());
+				return false;
+			}
+			if (buf.position() != 0 || reused.getDataLen() != pdata.length
+					|| reused.getSeq() != p.getSeq() || !reused.isAck())
+				return false;
+			byte[] ddata = reused.getData();
+			for (int i = 0; i < pdata.length; i++) {
+				if (ddata[i] != pdata[i])
+					return false;
+			}
+		}
+
+		// flip a payload bit, should fail the checksum
+		buf.put(TCPpacket.HEADERN, (byte) (buf.get(TCPpacket.HEADERN) ^ 0x10));
+		try {
+			reused.decode(buf);
+			return false;
+		} catch (ChecksumException e) {
+			return true;
+		} catch (SerialException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Compares Checksum against summing one unsigned short at
+	 * a time for every length and offset (odd lengths included),
+	 * and the incremental timestamp update against a full sum.
+	 */
+	private static boolean testChecksum() {
+		Random rand = new Random(3);
+		byte[] bytes = new byte[200];
+		rand.nextBytes(bytes);
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		for (int from = 0; from < 9; from++) {
+			for (int to = from; to <= bytes.length; to++) {
+				int sum = 0;
+				for (int i = from; i < to; i += 2) {
+					sum += (bytes[i] & 0xFF) << 8;
+					if (i + 1 < to)
+						sum += bytes[i + 1] & 0xFF;
+					sum = (sum & 0xFFFF) + (sum >>> 16);
+				}
+				if ((short) ~sum != Checksum.checksum(buf, from, to))
+					return false;
+			}
+		}
+
+		TCPpacket p = new TCPpacket();
+		p.setAck();
+		p.setData(bytes, 0, 99);
+		p.setTime(rand.nextLong());
+		ByteBuffer out = ByteBuffer.allocate(p.getSerialLen());
+		for (int i = 0; i < 100; i++) {
+			out.clear();
+			p.encode(out); // checksum is cached after the first encode
+			p.setTime(rand.nextLong());
+			out.clear();
+			p.encode(out);
+			out.flip();
+			if (!Checksum.verify(out, 0, out.limit()))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A packet whose data is a slice of a larger buffer, sent as
+	 * a header then the slice, decodes to the same bytes.
+	 */
+	private static boolean testPayloadBuffer() {
+		byte[] bytes = new byte[64];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) (i * 31);
+		ByteBuffer file = ByteBuffer.allocateDirect(bytes.length);
+		file.put(bytes).clear();
+		file.position(5).limit(38); // odd length at an odd offset
+
+		TCPpacket p = new TCPpacket();
+		p.setAck();
+		p.setSeq(6);
+		p.setData(file);
+		ByteBuffer out = ByteBuffer.allocate(200);
+		p.encodeHeader(out);
+		out.put(file.duplicate());
+		out.flip();
+		try {
+			TCPpacket d = new TCPpacket().decode(out);
+			if (d.getDataLen() != 33 || d.getSeq() != 6 || file.position() != 5)
+				return false;
+			for (int i = 0; i < 33; i++) {
+				if (d.getData()[i] != bytes[i + 5])
+					return false;
+			}
+			// the copying encode gives the same packet
+			out.clear();
+			p.setCurrentTime();
+			p.encode(out);
+			out.flip();
+			return new TCPpacket().decode(out).getDataLen() == 33;
+		} catch (SerialException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Fills, slides and wraps a window whose size
+	 * is not a power of 2.
+	 */
+	private static boolean testWindow() {
+		Window<Integer> w = new Window<>(5);
+		if (w.capacity() != 8)
+			return false;
+		int next = 0, first = 0;
+		for (int round = 0; round < 20; round++) {
+			while (!w.isFull())
+				w.add(next++);
+			if (w.length() != 5 || w.get(0) != first || w.get(4) != first + 4)
+				return false;
+			w.slide(round % 3 + 1);
+			first += round % 3 + 1;
+			if (w.get(0) != first || w.get(w.length()) != null)
+				return false;
+		}
+		// out of order inserts as the Receiver does
+		w.slide(w.length());
+		w.set(3, 3);
+		w.set(0, 0);
+		if (w.get(1) != null || w.get(3) != 3)
+			return false;
+		w.slide(1);
+		try {
+			w.set(5, 5);
+			return false;
+		} catch (IndexOutOfBoundsException e) {
+			return w.get(2) == 3;
+		}
+	}
+
+	/**
+	 * SACK options round trip, the data after them is intact and
+	 * blocks beyond MAX_SACK_BLOCKS are dropped.
+	 */
+	private static boolean testSackOptions() {
+		TCPpacket p = new TCPpacket();
+		p.setAck();
+		p.setSackPermitted(true);
+		for (int b = 0; b <= TCPpacket.MAX_SACK_BLOCKS; b++) {
+			if (p.addSackBlock(100 * b, 100 * b + 50) != (b < TCPpacket.MAX_SACK_BLOCKS))
+				return false;
+		}
+		byte[] pdata = {9, 8, 7};
+		p.setData(pdata);
+		try {
+			TCPpacket d = TCPpacket.deserialize(p.serialize());
+			if (!d.isSackPermitted() || d.getSackBlocks() != TCPpacket.MAX_SACK_BLOCKS
+					|| d.getSackStart(2) != 200 || d.getSackEnd(3) != 350
+					|| d.getDataLen() != 3 || d.getData()[2] != 7)
+				return false;
+			p.clearSack();
+			p.setSackPermitted(false);
+			return p.getOptionsLen() == 0 && TCPpacket.deserialize(p.serialize()).getSackBlocks() == 0;
+		} catch (SerialException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * The stripe option of a SYN round trips next to SACK permitted,
+	 * and a packet decoded into afterwards does not keep it.
+	 */
+	private static boolean testStripeOption() {
+		TCPpacket p = new TCPpacket();
+		p.setSyn();
+		p.setSackPermitted(true);
+		p.setStripe(3L << 32, 5L << 32);
+		try {
+			TCPpacket d = TCPpacket.deserialize(p.serialize());
+			if (!d.hasStripe() || d.getStripeOffset() != 3L << 32 || d.getStripeTotal() != 5L << 32
+					|| !d.isSackPermitted() || d.getOptionsLen() != 20)
+				return false;
+			TCPpacket plain = new TCPpacket();
+			plain.setAck();
+			d.decode(ByteBuffer.wrap(plain.serialize()));
+			return !d.hasStripe() && d.getOptionsLen() == 0;
+		} catch (SerialException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * The max segment option of a SYN and the probe
+	 * option of a padding only probe.
+	 */
+	private static boolean testProbeOptions() {
+		TCPpacket syn = new TCPpacket();
+		syn.setSyn();
+		syn.setMaxSegment(65443);
+		TCPpacket probe = new TCPpacket();
+		probe.setAck();
+		probe.setData(new byte[9000]);
+		probe.setProbe(9000);
+		try {
+			TCPpacket d = TCPpacket.deserialize(syn.serialize());
+			if (d.getMaxSegment() != 65443 || d.getProbe() != 0 || d.getOptionsLen() != 4)
+				return false;
+			d.decode(ByteBuffer.wrap(probe.serialize()));
+			return d.getProbe() == 9000 && d.getMaxSegment() == 0 && d.getDataLen() == 9000;
+		} catch (SerialException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * The window option, 0 included, fits next to four SACK blocks,
+	 * and a packet decoded into afterwards does not keep it.
+	 */
+	private static boolean testWindowOption() {
+		TCPpacket ack = new TCPpacket();
+		ack.setAck();
+		ack.setWindow(0);
+		for (int i = 0; i < TCPpacket.MAX_SACK_BLOCKS; i++)
+			ack.addSackBlock(10 * i + 20, 10 * i + 25);
+		try {
+			TCPpacket d = TCPpacket.deserialize(ack.serialize());
+			if (d.getWindow() != 0 || d.getSackBlocks() != TCPpacket.MAX_SACK_BLOCKS || d.getOptionsLen() != 40)
+				return false;
+			ack.clearSack();
+			ack.setWindow(1 << 20);
+			d.decode(ByteBuffer.wrap(ack.serialize()));
+			if (d.getWindow() != 1 << 20)
+				return false;
+			TCPpacket plain = new TCPpacket();
+			plain.setAck();
+			d.decode(ByteBuffer.wrap(plain.serialize()));
+			return d.getWindow() == -1 && d.getOptionsLen() == 0;
+		} catch (SerialException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Appended and positioned writes that wrap around the ring end up
+	 * in the file, and nothing is pending once it is closed.
+	 */
+	private static boolean testWriteBehind() {
+		try {
+			java.io.File f = java.io.File.createTempFile("writebehind", ".bin");
+			f.deleteOnExit();
+			byte[] expect = new byte[10_000];
+			new Random(7).nextBytes(expect);
+			try (java.nio.channels.FileChannel fc = java.nio.channels.FileChannel.open(f.toPath(),
+					java.nio.file.StandardOpenOption.WRITE)) {
+				WriteBehind w = new WriteBehind(fc, 1000);
+				for (int off = 0; off < 6000; off += 700)
+					w.write(expect, off, Math.min(700, 6000 - off), -1);
+				// the rest backwards, each at its own position
+				for (int end = 10_000; end > 6000; end -= 900) {
+					int start = Math.max(end - 900, 6000);
+					w.write(expect, start, end - start, start);
+				}
+				w.close();
+				if (w.pending() != 0)
+					return false;
+			}
+			if (!java.util.Arrays.equals(expect, java.nio.file.Files.readAllBytes(f.toPath())))
+				return false;
+
+			// a failed write is thrown by finish() and not again by close()
+			java.nio.channels.WritableByteChannel broken = new java.nio.channels.WritableByteChannel() {
+				public int write(ByteBuffer src) throws java.io.IOException {
+					throw new java.io.IOException("disk full");
+				}
+
+				public boolean isOpen() {
+					return true;
+				}
+
+				public void close() {
+				}
+			};
+			try (WriteBehind w = new WriteBehind(broken, 1000)) {
+				w.write(expect, 0, 700, -1);
+				w.finish();
+				return false;
+			} catch (java.io.IOException e) {
+				return e.getMessage().equals("disk full") && e.getSuppressed().length == 0;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Appends go to a pipe as to a file, a write at a position does
+	 * not. Read ahead without deflate, a segment is what one read of a
+	 * pipe returned and ready() says when next() would not wait.
+	 * Closing it while its read waits leaves the pipe open.
+	 */
+	private static boolean testStreams() {
+		try {
+			java.nio.channels.Pipe pipe = java.nio.channels.Pipe.open();
+			byte[] expect = new byte[10_000];
+			new Random(11).nextBytes(expect);
+			WriteBehind w = new WriteBehind(pipe.sink(), 1000);
+			for (int off = 0; off < expect.length; off += 700)
+				w.write(expect, off, Math.min(700, expect.length - off), -1);
+			try {
+				w.write(expect, 0, 10, 0);
+				return false;
+			} catch (IllegalArgumentException e) {
+				// needs a file
+			}
+			w.close();
+			ByteBuffer got = ByteBuffer.allocate(expect.length);
+			while (got.hasRemaining())
+				pipe.source().read(got);
+			if (!java.util.Arrays.equals(expect, got.array()))
+				return false;
+
+			java.io.InputStream in = java.nio.channels.Channels.newInputStream(pipe.source());
+			try (SegmentCompressor c = new SegmentCompressor(in, Long.MAX_VALUE, 1000, 2, false)) {
+				if (c.ready())
+					return false;
+				byte[] text = new byte[300]; // would deflate
+				pipe.sink().write(ByteBuffer.wrap(text));
+				for (int i = 0; i < 100 && !c.ready(); i++)
+					Thread.sleep(10);
+				SegmentCompressor.Segment s = c.next();
+				if (s == null || s.compressed || s.rawLength != 300 || s.length != 300)
+					return false;
+				pipe.sink().close();
+				if (c.next() != null || !c.ready())
+					return false;
+			}
+			java.nio.channels.Pipe idle = java.nio.channels.Pipe.open();
+			SegmentCompressor c = new SegmentCompressor(java.nio.channels.Channels.newInputStream(idle.source()),
+					Long.MAX_VALUE, 1000, 2, false);
+			Thread.sleep(50); // blocked in its read
+			c.close();
+			Thread.sleep(50);
+			boolean open = idle.source().isOpen();
+			idle.sink().close(); // lets the read return
+			idle.source().close();
+			return open;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * The drops of the sockets on a port are read from (and summed
+	 * over) the lines of /proc/net/udp, -1 when none are on it.
+	 */
+	private static boolean testUdpDrops() {
+		java.util.List<String> table = java.util.Arrays.asList(
+				"   sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode ref pointer drops",
+				"  1: 0100007F:1F90 00000000:0000 07 00000000:00000000 00:00000000 00000000     0        0 1234 2 0000000000000000 5",
+				"  2: 00000000:1F90 00000000:0000 07 00000000:00000000 00:00000000 00000000     0        0 1235 2 0000000000000000 7",
+				"  3: 0100007F:1F91 0100007F:1F90 01 00000000:00000000 00:00000000 00000000     0        0 1236 2 0000000000000000 100");
+		return Transport.udpDrops(table, 8080) == 12 && Transport.udpDrops(table, 8081) == 100
+				&& Transport.udpDrops(table, 9000) == -1;
+	}
+
+	/**
+	 * The compressed bit leaves the length and flags alone and round
+	 * trips with the compression permitted option.
+	 */
+	private static boolean testCompressedFlag() {
+		TCPpacket p = new TCPpacket();
+		p.setSyn();
+		p.setCompressPermitted(true);
+		TCPpacket data = new TCPpacket();
+		data.setAck();
+		data.setData(new byte[1001]);
+		data.setCompressed(true);
+		try {
+			TCPpacket d = TCPpacket.deserialize(p.serialize());
+			if (!d.isCompressPermitted() || d.isCompressed() || d.getOptionsLen() != 2)
+				return false;
+			d.decode(ByteBuffer.wrap(data.serialize()));
+			if (!d.isCompressed() || !d.isAck() || d.isSyn() || d.getDataLen() != 1001 || d.isCompressPermitted())
+				return false;
+			d.setData(new byte[7]); // keeps the bit
+			if (!d.isCompressed() || d.getDataLen() != 7)
+				return false;
+			d.setCompressed(false);
+			return !d.isCompressed() && d.isAck() && d.getDataLen() == 7;
+		} catch (SerialException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Text is deflated a segment at a time and inflates back, random
+	 * bytes (and the short last segment of them) are passed on raw.
+	 */
+	private static boolean testSegmentCompressor() {
+		byte[] text = new byte[3000];
+		for (int i = 0; i < text.length; i++)
+			text[i] = (byte) "the quick brown fox jumps over the lazy dog\n".charAt(i % 44);
+		byte[] noise = new byte[1300];
+		new Random(3).nextBytes(noise);
+		byte[] file = new byte[text.length + noise.length];
+		System.arraycopy(text, 0, file, 0, text.length);
+		System.arraycopy(noise, 0, file, text.length, noise.length);
+		java.util.zip.Inflater inflater = new java.util.zip.Inflater(true);
+		try (SegmentCompressor c = new SegmentCompressor(new java.io.ByteArrayInputStream(file), Long.MAX_VALUE, 1000, 2)) {
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			byte[] seg = new byte[1000];
+			int segments = 0, compressed = 0;
+			SegmentCompressor.Segment s;
+			while ((s = c.next()) != null) {
+				segments++;
+				if (!s.compressed) {
+					out.write(s.data, 0, s.length);
+					continue;
+				}
+				compressed++;
+				int n = SegmentCompressor.inflate(inflater, s.data, s.length, seg);
+				if (s.length >= s.rawLength || n != s.rawLength)
+					return false;
+				out.write(seg, 0, n);
+			}
+			if (c.next() != null || SegmentCompressor.inflate(inflater, noise, 100, seg) != -1)
+				return false;
+			return segments == 5 && compressed == 3 && java.util.Arrays.equals(file, out.toByteArray());
+		} catch (java.io.IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * The resume option of a SYN and the offset answered in the SYN
+	 * ACK share a kind, told apart by their length.
+	 */
+	private static boolean testResumeOption() {
+		TCPpacket syn = new TCPpacket();
+		syn.setSyn();
+		syn.setResume(5L << 32, 1650000000123L);
+		TCPpacket synAck = new TCPpacket();
+		synAck.setSyn();
+		synAck.setAck();
+		synAck.setResumeOffset(3L << 32);
+		try {
+			TCPpacket d = TCPpacket.deserialize(syn.serialize());
+			if (!d.hasResume() || d.getResumeLength() != 5L << 32 || d.getResumeModified() != 1650000000123L
+					|| d.getResumeOffset() != -1 || d.getOptionsLen() != 18)
+				return false;
+			d.decode(ByteBuffer.wrap(synAck.serialize()));
+			return !d.hasResume() && d.getResumeOffset() == 3L << 32 && d.getOptionsLen() == 10;
+		} catch (SerialException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * A checkpoint saved over another loads back as the last one,
+	 * and a file that is not a checkpoint loads as none.
+	 */
+	private static boolean testCheckpoint() {
+		try {
+			java.io.File f = java.io.File.createTempFile("checkpoint", ".bin");
+			f.deleteOnExit();
+			java.nio.file.Path path = Checkpoint.pathFor(f.getPath());
+			path.toFile().deleteOnExit();
+			if (Checkpoint.load(path) != null)
+				return false;
+			Checkpoint c = new Checkpoint(1000, 42, 7, 100);
+			c.save(path);
+			c.done = 600;
+			c.save(path);
+			Checkpoint d = Checkpoint.load(path);
+			if (d == null || !d.matches(1000, 42) || d.matches(1000, 43) || d.base != 7 || d.done != 600)
+				return false;
+			java.nio.file.Files.write(path, new byte[36]);
+			return Checkpoint.load(path) == null;
+		} catch (java.io.IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private static boolean testDeltaOptions() {
+		TCPpacket syn = new TCPpacket();
+		syn.setSyn();
+		syn.setDeltaPermitted(true);
+		TCPpacket synAck = new TCPpacket();
+		synAck.setSyn();
+		synAck.setAck();
+		synAck.setDelta(4096, 5L << 32);
+		TCPpacket fetch = new TCPpacket();
+		fetch.setAck();
+		fetch.setFetch(3L << 32, 1434);
+		try {
+			TCPpacket d = TCPpacket.deserialize(syn.serialize());
+			if (!d.isDeltaPermitted() || d.getDeltaBlock() != 0 || d.getFetch() != -1 || d.getOptionsLen() != 2)
+				return false;
+			d.decode(ByteBuffer.wrap(synAck.serialize()));
+			if (d.isDeltaPermitted() || d.getDeltaBlock() != 4096 || d.getBasisLength() != 5L << 32
+					|| d.getOptionsLen() != 14)
+				return false;
+			d.decode(ByteBuffer.wrap(fetch.serialize()));
+			return d.getDeltaBlock() == 0 && d.getFetch() == 3L << 32 && d.getFetchLength() == 1434
+					&& d.getOptionsLen() == 14;
+		} catch (SerialException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * A file with bytes changed, added and cut is encoded against the
+	 * signature of the old one and rebuilt from the stream, fed in odd
+	 * pieces. Only about the changed blocks go as literals, and a stream
+	 * with a wrong digest does not verify.
+	 */
+	private static boolean testDelta() {
+		try {
+			Random r = new Random(24);
+			byte[] old = new byte[200_000];
+			r.nextBytes(old);
+			java.io.ByteArrayOutputStream edited = new java.io.ByteArrayOutputStream();
+			edited.write(old, 0, 50_000);
+			edited.write("changed".getBytes());
+			edited.write(old, 50_007, 70_000);
+			edited.write(new byte[3000]); // inserted
+			edited.write(old, 130_000, 70_000); // 10000 cut
+			byte[] now = edited.toByteArray();
+			java.nio.file.Path basisPath = java.nio.file.Files.createTempFile("basis", ".bin");
+			java.nio.file.Path newPath = java.nio.file.Files.createTempFile("new", ".bin");
+			java.nio.file.Path outPath = java.nio.file.Files.createTempFile("out", ".bin");
+			basisPath.toFile().deleteOnExit();
+			newPath.toFile().deleteOnExit();
+			outPath.toFile().deleteOnExit();
+			java.nio.file.Files.write(basisPath, old);
+			java.nio.file.Files.write(newPath, now);
+			final int block = DeltaSignature.blockSize(old.length);
+			byte[] stream;
+			long literal;
+			try (java.nio.channels.FileChannel basis = java.nio.channels.FileChannel.open(basisPath)) {
+				byte[] sig = DeltaSignature.compute(basis, old.length, block);
+				if (sig.length != DeltaSignature.length(old.length, block))
+					return false;
+				try (DeltaEncoder e = DeltaEncoder.encode(newPath, sig, old.length, block)) {
+					stream = e.readAllBytes();
+					literal = e.getLiteralBytes();
+				}
+			}
+			if (literal < 3007 || literal > 3007 + 4 * block)
+				return false;
+			if (!rebuild(stream, basisPath, outPath, old.length, block)
+					|| !java.util.Arrays.equals(java.nio.file.Files.readAllBytes(outPath), now))
+				return false;
+			stream[stream.length - 1] ^= 1; // in the last digest
+			return !rebuild(stream, basisPath, outPath, old.length, block);
+		} catch (java.io.IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private static boolean rebuild(byte[] stream, java.nio.file.Path basisPath, java.nio.file.Path outPath,
+			long basisLength, int block) throws java.io.IOException {
+		java.nio.file.Files.write(outPath, new byte[0]);
+		DeltaDecoder d;
+		try (java.nio.channels.FileChannel basis = java.nio.channels.FileChannel.open(basisPath);
+				java.nio.channels.FileChannel out = java.nio.channels.FileChannel.open(outPath,
+						java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.APPEND);
+				WriteBehind w = new WriteBehind(out, 4096)) {
+			d = new DeltaDecoder(w, basis, basisLength, block, 1000);
+			for (int off = 0; off < stream.length; off += 777)
+				d.accept(stream, off, Math.min(777, stream.length - off));
+		}
+		try (java.nio.channels.FileChannel out = java.nio.channels.FileChannel.open(outPath)) {
+			return d.verify(out);
+		}
+	}
+
+	/**
+	 * Slow start, the decrease on a loss or timeout and
+	 * the cap at the window from the command line.
+	 */
+	private static boolean testCongestionControl() {
+		NewReno reno = new NewReno(64);
+		int w = reno.window();
+		reno.onAck(w, 10); // a round trip in slow start doubles the window
+		if (reno.window() != 2 * w)
+			return false;
+		reno.onLoss(reno.window());
+		if (reno.ssthresh() != w || reno.window() != w + 3)
+			return false;
+		reno.onDupAck();
+		reno.onRecoveryEnd();
+		if (reno.window() != w)
+			return false;
+		reno.onTimeout(w);
+		if (reno.window() != 1)
+			return false;
+		for (int i = 0; i < 5000; i++)
+			reno.onAck(1, 10);
+		if (reno.window() != 64)
+			return false;
+
+		Cubic cubic = new Cubic(1000);
+		for (int i = 0; i < 100; i++)
+			cubic.onAck(1, 10);
+		int before = cubic.window();
+		cubic.onLoss(before);
+		return cubic.ssthresh() == (int) (before * 0.7);
+	}
+
+	private static boolean testTimerWheel() {
+		TimerWheel wheel = new TimerWheel(8, 4, 10); // one turn is 40ms
+		final int[] fired = new int[8];
+		TimerWheel.Expired count = id -> fired[id]++;
+		wheel.expire(1000, count);
+		wheel.schedule(0, 1005);
+		wheel.schedule(1, 1025);
+		wheel.schedule(2, 1100); // more than a turn away, shares a bucket with 1
+		wheel.schedule(3, 1030);
+		wheel.cancel(3);
+		if (wheel.size() != 3 || wheel.isScheduled(3))
+			return false;
+		if (wheel.expire(1004, count) != 0 || wheel.expire(1010, count) != 1 || fired[0] != 1)
+			return false;
+		if (wheel.expire(1030, count) != 1 || fired[1] != 1 || fired[2] != 0 || fired[3] != 0)
+			return false;
+		wheel.schedule(1, 1050);
+		wheel.schedule(1, 1060); // replaces the deadline
+		if (wheel.expire(1055, count) != 0)
+			return false;
+		// a late wakeup fires everything that is due, once
+		if (wheel.expire(2000, count) != 2 || fired[1] != 2 || fired[2] != 1)
+			return false;
+		// a timer may be rescheduled from its own callback
+		wheel.schedule(4, 2010);
+		wheel.expire(2010, id -> wheel.schedule(id, 2020));
+		return wheel.isScheduled(4) && wheel.expire(2020, count) == 1 && wheel.size() == 0
+				&& wheel.untilNextTick(2023) == 7;
+	}
+
+	private static boolean testPacketTrace() {
+		TCPpacket syn = new TCPpacket();
+		syn.setSyn();
+		syn.setSeq(3);
+		syn.setTime(42);
+		TCPpacket data = new TCPpacket();
+		data.setAck();
+		data.setSeq(1);
+		data.setAckNum(4);
+		data.setData(new byte[] {1, 2, 3});
+		data.setTime(43);
+		String expect = "snd 42 S - - - 3 0 0\nrcv 43 - A - D 1 3 4\n";
+		try {
+			java.io.ByteArrayOutputStream text = new java.io.ByteArrayOutputStream();
+			PacketTrace trace = PacketTrace.text(new java.io.PrintStream(text));
+			trace.record(true, syn);
+			trace.record(false, data);
+			trace.close();
+			if (!text.toString().equals(expect))
+				return false;
+
+			java.io.File f = java.io.File.createTempFile("trace", ".bin");
+			f.deleteOnExit();
+			PacketTrace binary = PacketTrace.binary(f.getPath());
+			// more events than the ring holds, from two threads
+			Thread other = new Thread(() -> {
+				for (int i = 0; i < 100_000; i++)
+					binary.record(false, data);
+			});
+			binary.record(true, syn);
+			other.start();
+			for (int i = 0; i < 100_000; i++)
+				binary.record(true, data);
+			other.join();
+			binary.close();
+			java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+			PacketTrace.print(f.getPath(), new java.io.PrintStream(out));
+			String[] lines = out.toString().split("\n");
+			int rcv = 0;
+			for (String line : lines)
+				if (line.startsWith("rcv"))
+					rcv++;
+			return lines.length == 200_001 && rcv == 100_000 && lines[0].equals("snd 42 S - - - 3 0 0");
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private static boolean testHistogram() {
+		// every bucket's highest value maps back to it and the next value to the next bucket
+		for (int i = 0; i < 3000; i++)
+			if (Histogram.index(Histogram.highest(i)) != i || Histogram.index(Histogram.highest(i) + 1) != i + 1)
+				return false;
+		Histogram h = new Histogram();
+		if (h.getPercentile(50) != 0 || h.getMean() != 0)
+			return false;
+		for (long v = 1; v <= 100_000; v++)
+			h.record(v);
+		if (h.getCount() != 100_000 || h.getMax() != 100_000 || h.getMean() != 50_000.5)
+			return false;
+		long p50 = h.getPercentile(50), p99 = h.getPercentile(99);
+		if (p50 < 50_000 || p50 > 50_000 * 1.02 || p99 < 99_000 || p99 > 100_000)
+			return false;
+		TransferMetrics m = new TransferMetrics();
+		m.dupAck();
+		m.dupAck();
+		m.addData(100);
+		m.rtt(250);
+		return m.getDuplicateAcks() == 2 && m.getDataTransferred() == 100 && m.getRttP50() == 250;
+	}
+
+	/**
+	 * Two senders into one ReceiverServer over loopback, one of them
+	 * probing for larger segments, so its segments change size on the
+	 * way. Each lands whole in a file of its own.
+	 */
+	private static boolean testReceiverServer() {
+		ReceiverServer server = null;
+		Thread loop = null;
+		try {
+			java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("server");
+			byte[] data = new byte[300_000];
+			new Random(13).nextBytes(data);
+			java.nio.file.Path in = dir.resolve("in.bin");
+			java.nio.file.Files.write(in, data);
+			final ReceiverServer srv = server = new ReceiverServer(0, dir.resolve("out").toString(), 1500, 32, 2);
+			loop = new Thread(() -> {
+				try {
+					srv.run();
+				} catch (java.io.IOException e) {
+					e.printStackTrace();
+				}
+			});
+			loop.start();
+			Sender[] senders = new Sender[2];
+			Thread[] threads = new Thread[2];
+			boolean[] ok = new boolean[2];
+			for (int i = 0; i < 2; i++) {
+				senders[i] = new Sender(0, server.getPort(), "127.0.0.1", in.toString(), 1500, 32);
+				senders[i].setQuiet(true);
+				senders[i].setProbing(i == 1);
+				final int n = i;
+				threads[i] = new Thread(() -> ok[n] = senders[n].transfer());
+				threads[i].start();
+			}
+			for (Thread t : threads)
+				t.join();
+			server.close();
+			loop.join();
+			int files = 0;
+			try (java.util.stream.Stream<java.nio.file.Path> out = java.nio.file.Files.list(dir)) {
+				for (java.nio.file.Path f : (Iterable<java.nio.file.Path>) out::iterator) {
+					if (f.equals(in))
+						continue;
+					files++;
+					if (!java.util.Arrays.equals(data, java.nio.file.Files.readAllBytes(f)))
+						return false;
+					f.toFile().delete();
+				}
+			}
+			in.toFile().delete();
+			dir.toFile().delete();
+			return ok[0] && ok[1] && files == 2 && senders[1].getSegmentSize() > 1500 - 20 - 8 - 24;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			if (server != null)
+				server.close();
+		}
+	}
+
+	/**
+	 * Makes the Sender for a transfer once the port it sends to is known.
+	 */
+	private interface SenderTo {
+		Sender open(int port) throws java.io.IOException;
+	}
+
+	/**
+	 * Runs a transfer with SACK on through a Relay on loopback that
+	 * drops and holds back 3% of the datagrams each way.
+	 *
+	 * @return true if both ends finished and the Sender had to recover,
+	 * with resent segments and duplicate acks
+	 */
+	private static boolean relayed(Receiver receiver, SenderTo sender) throws Exception {
+		receiver.setQuiet(true);
+		Relay relay = new Relay(0, new java.net.InetSocketAddress("127.0.0.1", receiver.socket.getLocalPort()));
+		relay.setLoss(0.03);
+		relay.setReorder(0.03);
+		relay.setSeed(7);
+		Thread relaying = new Thread(relay);
+		relaying.start();
+		boolean[] received = new boolean[1];
+		Thread receiving = new Thread(() -> received[0] = receiver.transfer());
+		receiving.start();
+		try {
+			Sender s = sender.open(relay.getPort());
+			s.setQuiet(true);
+			s.setSack(true);
+			boolean sent = s.transfer();
+			receiving.join(60_000);
+			return sent && received[0] && s.metrics.getRetransmissions() > 0 && s.metrics.getDuplicateAcks() > 0;
+		} finally {
+			relay.close();
+			relaying.join();
+		}
+	}
+
+	/**
+	 * A Sender and a Receiver through a lossy, reordering Relay: to a
+	 * file, written at positions (preallocated then truncated), with
+	 * delayed acks, resumed from a checkpoint, and from one channel to
+	 * another. The bytes must come out whole every time.
+	 */
+	private static boolean testRelayedTransfers() {
+		try {
+			java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("relayed");
+			byte[] data = new byte[300_000];
+			new Random(17).nextBytes(data);
+			String in = dir.resolve("in.bin").toString();
+			java.nio.file.Files.write(dir.resolve("in.bin"), data);
+			java.nio.file.Path out = dir.resolve("out.bin");
+			SenderTo file = port -> new Sender(0, port, "127.0.0.1", in, 1500, 32);
+
+			if (!relayed(new Receiver(0, 0, out.toString(), 1500, 32), file)
+					|| !java.util.Arrays.equals(data, java.nio.file.Files.readAllBytes(out)))
+				return false;
+			java.nio.file.Files.delete(out);
+
+			Receiver r = new Receiver(0, 0, out.toString(), 1500, 32);
+			r.setPositional(true);
+			if (!relayed(r, file) || !java.util.Arrays.equals(data, java.nio.file.Files.readAllBytes(out)))
+				return false;
+			java.nio.file.Files.delete(out);
+
+			r = new Receiver(0, 0, out.toString(), 1500, 32);
+			r.setDelayedAck(4, 20);
+			if (!relayed(r, file) || !java.util.Arrays.equals(data, java.nio.file.Files.readAllBytes(out)))
+				return false;
+
+			// the first 100_000 bytes are there from an earlier transfer
+			java.nio.file.Files.write(out, java.util.Arrays.copyOf(data, 100_000));
+			java.nio.file.Path checkpoint = Checkpoint.pathFor(out.toString());
+			new Checkpoint(data.length, new java.io.File(in).lastModified(), 0, 100_000).save(checkpoint);
+			Sender[] resumed = new Sender[1];
+			if (!relayed(new Receiver(0, 0, out.toString(), 1500, 32), port -> {
+				resumed[0] = new Sender(0, port, "127.0.0.1", in, 1500, 32);
+				resumed[0].setResume(true);
+				return resumed[0];
+			}) || resumed[0].getResumeOffset() != 100_000 || java.nio.file.Files.exists(checkpoint)
+					|| !java.util.Arrays.equals(data, java.nio.file.Files.readAllBytes(out)))
+				return false;
+			java.nio.file.Files.delete(out);
+
+			java.io.ByteArrayOutputStream sink = new java.io.ByteArrayOutputStream();
+			if (!relayed(new Receiver(0, 0, java.nio.channels.Channels.newChannel(sink), 1500, 32),
+					port -> new Sender(0, port, "127.0.0.1",
+							java.nio.channels.Channels.newChannel(new java.io.ByteArrayInputStream(data)), 1500, 32))
+					|| !java.util.Arrays.equals(data, sink.toByteArray()))
+				return false;
+
+			java.nio.file.Files.delete(dir.resolve("in.bin"));
+			java.nio.file.Files.delete(dir);
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
 	private static void handleError(String msg, boolean isExit) {
 		System.err.println(msg);
 		if (isExit) System.exit(1);
@@ -41,6 +959,29 @@ public class Test {
 	public static void main(String[] args) {
 		boolean isExit = true;
 		if (!testSerialize()) handleError("serialize()", isExit);
+		if (!testEncodeDecode()) handleError("encode(ByteBuffer)/decode(ByteBuffer)", isExit);
+		if (!testChecksum()) handleError("Checksum", isExit);
+		if (!testPayloadBuffer()) handleError("setData(ByteBuffer)", isExit);
+		if (!testWindow()) handleError("Window", isExit);
+		if (!testSackOptions()) handleError("SACK options", isExit);
+		if (!testStripeOption()) handleError("Stripe option", isExit);
+		if (!testProbeOptions()) handleError("Probe options", isExit);
+		if (!testWindowOption()) handleError("Window option", isExit);
+		if (!testWriteBehind()) handleError("WriteBehind", isExit);
+		if (!testUdpDrops()) handleError("Transport.udpDrops", isExit);
+		if (!testCompressedFlag()) handleError("Compressed flag", isExit);
+		if (!testSegmentCompressor()) handleError("SegmentCompressor", isExit);
+		if (!testStreams()) handleError("Channels in place of files", isExit);
+		if (!testResumeOption()) handleError("Resume option", isExit);
+		if (!testCheckpoint()) handleError("Checkpoint", isExit);
+		if (!testDeltaOptions()) handleError("Delta options", isExit);
+		if (!testDelta()) handleError("DeltaEncoder/DeltaDecoder", isExit);
+		if (!testCongestionControl()) handleError("CongestionControl", isExit);
+		if (!testTimerWheel()) handleError("TimerWheel", isExit);
+		if (!testPacketTrace()) handleError("PacketTrace", isExit);
+		if (!testHistogram()) handleError("Histogram", isExit);
+		if (!testReceiverServer()) handleError("ReceiverServer", isExit);
+		if (!testRelayedTransfers()) handleError("Sender to Receiver through a Relay", isExit);
 		System.out.println("Passed All Tests");
 		return;
 	}
@@ -0,0 +1,96 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Virtual threads where the JDK has them (21 and up). They are looked
+ * up by reflection so everything still builds and runs on 17, where
+ * the same calls give daemon platform threads instead.
+ */
+public final class Threads {
+
+	private static final MethodHandle VIRTUAL_EXECUTOR = find(Executors.class, "newVirtualThreadPerTaskExecutor",
+			MethodType.methodType(ExecutorService.class));
+	private static final MethodHandle START_VIRTUAL = find(Thread.class, "startVirtualThread",
+			MethodType.methodType(Thread.class, Runnable.class));
+	private static final MethodHandle IS_VIRTUAL = findVirtual(Thread.class, "isVirtual",
+			MethodType.methodType(boolean.class));
+
+	private Threads() {
+	}
+
+	private static MethodHandle find(Class<?> c, String name, MethodType type) {
+		try {
+			return MethodHandles.publicLookup().findStatic(c, name, type);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static MethodHandle findVirtual(Class<?> c, String name, MethodType type) {
+		try {
+			return MethodHandles.publicLookup().findVirtual(c, name, type);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the current thread is a virtual thread
+	 */
+	public static boolean isVirtual() {
+		if (IS_VIRTUAL == null)
+			return false;
+		try {
+			return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static boolean hasVirtual() {
+		return VIRTUAL_EXECUTOR != null;
+	}
+
+	/**
+	 * An executor that runs every task on a thread of its own, virtual
+	 * if asked for and available. The platform threads are daemons
+	 * named name-n.
+	 */
+	public static ExecutorService perTask(boolean virtual, String name) {
+		if (virtual && hasVirtual()) {
+			try {
+				return (ExecutorService) VIRTUAL_EXECUTOR.invokeExact();
+			} catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		AtomicInteger n = new AtomicInteger();
+		return Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, name + "-" + n.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Starts r on a virtual thread if available, else on a daemon
+	 * platform thread.
+	 */
+	public static Thread start(boolean virtual, Runnable r, String name) {
+		if (virtual && START_VIRTUAL != null) {
+			try {
+				return (Thread) START_VIRTUAL.invokeExact(r);
+			} catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+}
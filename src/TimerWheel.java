@@ -0,0 +1,135 @@
+/**
+ * A hashed timer wheel for a fixed set of timers, identified by
+ * ints in [0, timers) (the Sender uses window slots). A timer is
+ * hashed into the bucket of its deadline's tick, and expire(long, Expired)
+ * walks the buckets of the ticks that passed, firing the timers whose
+ * deadline is due and leaving those that are a full turn or more away.
+ * Scheduling, cancelling and firing a timer are O(1).
+ *
+ * Buckets are intrusive doubly linked lists over arrays, so nothing
+ * is allocated once the wheel is built.
+ */
+public class TimerWheel {
+
+	public interface Expired {
+		/**
+		 * Called for each timer that fired, it may reschedule id
+		 * but should not cancel or schedule other timers.
+		 */
+		void expired(int id);
+	}
+
+	private static final int NONE = -1;
+
+	private final long tick;	// ms per bucket
+	private final int mask;
+	private final int[] heads;	// first timer in each bucket
+	private final int[] next;
+	private final int[] prev;
+	private final int[] bucket;	// bucket of each timer, NONE if not scheduled
+	private final long[] deadlines;
+	private long current = -1;	// the last tick expire() walked
+	private int scheduled;
+
+	/**
+	 * @param timers number of timer ids
+	 * @param buckets rounded up to a power of 2, buckets * tick ms is one turn
+	 * @param tick ms per bucket
+	 */
+	public TimerWheel(int timers, int buckets, long tick) {
+		int n = Integer.highestOneBit(Math.max(buckets, 1));
+		if (n < buckets)
+			n <<= 1;
+		this.tick = tick;
+		this.mask = n - 1;
+		this.heads = new int[n];
+		this.next = new int[timers];
+		this.prev = new int[timers];
+		this.bucket = new int[timers];
+		this.deadlines = new long[timers];
+		java.util.Arrays.fill(heads, NONE);
+		java.util.Arrays.fill(bucket, NONE);
+	}
+
+	/**
+	 * Sets timer id to fire at deadline (ms), replacing its
+	 * previous deadline if it was scheduled.
+	 */
+	public void schedule(int id, long deadline) {
+		cancel(id);
+		long t = Math.max(deadline / tick, current);
+		int b = (int) (t & mask);
+		deadlines[id] = deadline;
+		bucket[id] = b;
+		prev[id] = NONE;
+		next[id] = heads[b];
+		if (heads[b] != NONE)
+			prev[heads[b]] = id;
+		heads[b] = id;
+		scheduled++;
+	}
+
+	public void cancel(int id) {
+		int b = bucket[id];
+		if (b == NONE)
+			return;
+		if (prev[id] != NONE)
+			next[prev[id]] = next[id];
+		else
+			heads[b] = next[id];
+		if (next[id] != NONE)
+			prev[next[id]] = prev[id];
+		bucket[id] = NONE;
+		scheduled--;
+	}
+
+	public boolean isScheduled(int id) {
+		return bucket[id] != NONE;
+	}
+
+	public long getDeadline(int id) {
+		return deadlines[id];
+	}
+
+	/**
+	 * @return the number of timers scheduled
+	 */
+	public int size() {
+		return scheduled;
+	}
+
+	/**
+	 * @return ms from now until the start of the next tick, at least 1
+	 */
+	public long untilNextTick(long now) {
+		return Math.max(1, (now / tick + 1) * tick - now);
+	}
+
+	/**
+	 * Fires every timer whose deadline is at or before now.
+	 *
+	 * @return the number of timers fired
+	 */
+	public int expire(long now, Expired callback) {
+		final long target = now / tick;
+		if (current < 0 || target - current > mask)
+			current = target - mask; // a whole turn passed, walk each bucket once
+		int fired = 0;
+		for (long t = current; t <= target; t++) {
+			int id = heads[(int) (t & mask)];
+			while (id != NONE) {
+				int nxt = next[id];
+				if (deadlines[id] <= now) {
+					cancel(id);
+					fired++;
+					callback.expired(id);
+				}
+				id = nxt;
+			}
+		}
+		// the bucket of the target tick is walked again next time,
+		// timers may still be added to it later in this tick
+		current = target;
+		return fired;
+	}
+}
@@ -0,0 +1,84 @@
+import java.io.Closeable;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs any number of Sender transfers at once from one JVM, each a
+ * plain blocking transfer() on a thread of its own (virtual where the
+ * JDK has them) and its own ephemeral port. Transfers are quiet, see
+ * Transport.setQuiet. A transfer that gives up on its connection
+ * returns false, one that cannot start (a file that cannot be read, a
+ * host that does not resolve) fails its Future with the IOException,
+ * the others go on either way.
+ */
+public class TransferClient implements Closeable {
+
+	private final ExecutorService executor;
+	private PacketTrace trace;
+	private boolean sack;
+	private String cc = "newreno";
+
+	public TransferClient(boolean virtual) {
+		executor = Threads.perTask(virtual, "sender");
+	}
+
+	/**
+	 * @param trace shared by every transfer, null for none
+	 */
+	public void setTrace(PacketTrace trace) {
+		this.trace = trace;
+	}
+
+	public void setSack(boolean sack) {
+		this.sack = sack;
+	}
+
+	/**
+	 * @param cc newreno, cubic or fixed
+	 */
+	public void setCongestionControl(String cc) {
+		this.cc = cc;
+	}
+
+	/**
+	 * Starts sending filename to host:port.
+	 *
+	 * @return the result of the Sender's transfer()
+	 */
+	public Future<Boolean> send(String host, int port, String filename, int mtu, int sws) {
+		return executor.submit(() -> transfer(new Sender(0, port, host, filename, mtu, sws), sws));
+	}
+
+	/**
+	 * Starts sending what is read from source to host:port until it
+	 * ends, see the Sender for channels.
+	 *
+	 * @return the result of the Sender's transfer()
+	 */
+	public Future<Boolean> send(String host, int port, ReadableByteChannel source, int mtu, int sws) {
+		return executor.submit(() -> transfer(new Sender(0, port, host, source, mtu, sws), sws));
+	}
+
+	private boolean transfer(Sender s, int sws) {
+		s.setSack(sack);
+		s.setCongestionControl(CongestionControl.forName(cc, sws));
+		s.setTrace(trace);
+		s.setQuiet(true);
+		return s.transfer();
+	}
+
+	/**
+	 * Waits for the transfers that were started.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			// done waiting
+		}
+	}
+}
@@ -0,0 +1,144 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accepts transfers on one port and runs each as a plain blocking
+ * Receiver on a thread of its own, virtual where the JDK has them.
+ * Like TFTP the listener only reads the SYN and hands it to a Receiver
+ * on a fresh port. The SYN+ACK comes from that port, and the Sender
+ * connects to wherever the SYN+ACK came from, so the rest of the
+ * transfer never touches the listener. A SYN resent before the
+ * SYN+ACK arrived does not start a second Receiver.
+ *
+ * Every transfer is written to its own file, see Connection.outputName.
+ */
+public class TransferListener implements Closeable {
+
+	protected final String filename;
+	protected final int mtu;
+	protected final int sws;
+	private final DatagramChannel channel;
+	private final ExecutorService executor;
+	private final Set<SocketAddress> active = ConcurrentHashMap.newKeySet();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private PacketTrace trace;
+	private volatile boolean closed;
+
+	public TransferListener(int port, String filename, int mtu, int sws, boolean virtual) throws IOException {
+		this.filename = filename;
+		this.mtu = mtu;
+		this.sws = sws;
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		executor = Threads.perTask(virtual, "receiver");
+	}
+
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * @param trace shared by every transfer, null for none
+	 */
+	public void setTrace(PacketTrace trace) {
+		this.trace = trace;
+	}
+
+	public long getCompleted() {
+		return completed.sum();
+	}
+
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	/**
+	 * Reads SYNs until closed, then waits for the running transfers.
+	 */
+	public void run() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(mtu);
+		TCPpacket p = new TCPpacket();
+		try {
+			while (!closed) {
+				buf.clear();
+				SocketAddress from = channel.receive(buf);
+				buf.flip();
+				try {
+					p.decode(buf);
+				} catch (SerialException e) {
+					continue;
+				}
+				if (!p.isSyn() || !active.add(from))
+					continue; // late datagrams of a transfer, or a resent SYN
+				byte[] syn = Arrays.copyOf(buf.array(), buf.limit());
+				executor.execute(() -> accept(syn, from));
+			}
+		} catch (ClosedChannelException e) {
+			// closed
+		} finally {
+			close();
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				// done waiting
+			}
+		}
+	}
+
+	/**
+	 * The Receiver for the transfer whose SYN came from peer.
+	 */
+	protected Receiver newReceiver(SocketAddress peer) throws SocketException {
+		return new Receiver(0, 0, Connection.outputName(filename, peer), mtu, sws);
+	}
+
+	/**
+	 * Called on the transfer's thread once it is over.
+	 */
+	protected void finished(Receiver r, boolean ok) {
+	}
+
+	private void accept(byte[] syn, SocketAddress from) {
+		try {
+			Receiver r = newReceiver(from);
+			r.handoff(syn, from);
+			r.setTrace(trace);
+			r.setQuiet(true);
+			boolean ok = r.transfer();
+			if (ok)
+				completed.increment();
+			else
+				failed.increment();
+			finished(r, ok);
+		} catch (SocketException | RuntimeException e) {
+			System.err.println("Transfer from " + from + " failed: " + e.getMessage());
+			failed.increment();
+		} finally {
+			active.remove(from);
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+}
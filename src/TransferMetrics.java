@@ -0,0 +1,298 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The counters and histograms of a transfer, readable while it runs.
+ * Counters are LongAdders so they can be bumped from the transfer
+ * thread and read from JMX (or any other thread) without locking.
+ *
+ * While started a daemon thread takes a sample every second: the
+ * bytes delivered in that second go into the goodput histogram, and
+ * a tcpend.TransferSample JFR event is committed with the deltas.
+ * Each retransmission is also a tcpend.Retransmission event, e.g.
+ * java -XX:StartFlightRecording=filename=tcp.jfr TCPend ...
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+	@Name("tcpend.TransferSample")
+	@Label("Transfer Sample")
+	@Category("TCPend")
+	static class SampleEvent extends Event {
+		@Label("Goodput")
+		@DataAmount(DataAmount.BYTES)
+		long goodput;	// per second
+		@Label("Retransmissions")
+		long retransmissions;
+		@Label("Duplicate Acks")
+		long duplicateAcks;
+		@Label("Window")
+		int window;
+		@Label("Mean RTT")
+		@Timespan(Timespan.MICROSECONDS)
+		long rtt;
+	}
+
+	@Name("tcpend.Retransmission")
+	@Label("Retransmission")
+	@Category("TCPend")
+	static class RetransmitEvent extends Event {
+		@Label("Sequence Number")
+		int seq;
+	}
+
+	private final LongAdder data = new LongAdder();
+	private final LongAdder packets = new LongAdder();
+	private final LongAdder outOfSequence = new LongAdder();
+	private final LongAdder badChecksum = new LongAdder();
+	private final LongAdder retransmissions = new LongAdder();
+	private final LongAdder dupAcks = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder zeroWindows = new LongAdder();
+	private final LongAdder compressedSegments = new LongAdder();
+	private final LongAdder compressionSaved = new LongAdder();
+	private final Histogram rtt = new Histogram();	// us
+	private final Histogram latency = new Histogram();	// us
+	private final Histogram goodput = new Histogram();	// bytes/s
+	private volatile long lastGoodput;
+	private volatile IntSupplier window = () -> 0;
+	private volatile LongSupplier queueOverflows = () -> -1;
+	private volatile int sendBuffer;
+	private volatile int receiveBuffer;
+	private ObjectName name;
+	private Thread sampler;
+
+	public void addData(int bytes) {
+		data.add(bytes);
+	}
+
+	public void packet() {
+		packets.increment();
+	}
+
+	public void outOfSequence() {
+		outOfSequence.increment();
+	}
+
+	public void badChecksum() {
+		badChecksum.increment();
+	}
+
+	public void dupAck() {
+		dupAcks.increment();
+	}
+
+	public void retransmission(int seq) {
+		retransmissions.increment();
+		RetransmitEvent e = new RetransmitEvent();
+		if (e.isEnabled()) {
+			e.seq = seq;
+			e.commit();
+		}
+	}
+
+	public void zeroWindow() {
+		zeroWindows.increment();
+	}
+
+	public void compressed(int raw, int wire) {
+		compressedSegments.increment();
+		compressionSaved.add(raw - wire);
+	}
+
+	public void delivered(long bytes) {
+		delivered.add(bytes);
+	}
+
+	public void rtt(long micros) {
+		rtt.record(micros);
+	}
+
+	public void segmentLatency(long micros) {
+		latency.record(micros);
+	}
+
+	public void setWindow(IntSupplier window) {
+		this.window = window;
+	}
+
+	public void setQueueOverflows(LongSupplier queueOverflows) {
+		this.queueOverflows = queueOverflows;
+	}
+
+	public void setSocketBuffers(int send, int receive) {
+		this.sendBuffer = send;
+		this.receiveBuffer = receive;
+	}
+
+	/**
+	 * Registers the MBean as name and starts sampling,
+	 * a name that is taken only leaves it off JMX.
+	 */
+	public void start(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			this.name = new ObjectName("TCPend:type=Transfer,name=" + name);
+			server.registerMBean(this, this.name);
+		} catch (JMException e) {
+			System.err.println("Metrics not registered with JMX: " + e.getMessage());
+			this.name = null;
+		}
+		sampler = new Thread(this::sample, "metrics");
+		sampler.setDaemon(true);
+		sampler.start();
+	}
+
+	public void stop() {
+		if (sampler != null) {
+			sampler.interrupt();
+			sampler = null;
+		}
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				// gone already
+			}
+			name = null;
+		}
+	}
+
+	private void sample() {
+		long lastBytes = 0, lastRetransmissions = 0, lastDupAcks = 0;
+		long next = System.nanoTime();
+		try {
+			for (;;) {
+				next += 1_000_000_000L;
+				Thread.sleep(Math.max(0, (next - System.nanoTime()) / 1_000_000));
+				long bytes = delivered.sum(), r = retransmissions.sum(), d = dupAcks.sum();
+				lastGoodput = bytes - lastBytes;
+				goodput.record(lastGoodput);
+				SampleEvent e = new SampleEvent();
+				if (e.isEnabled()) {
+					e.goodput = lastGoodput;
+					e.retransmissions = r - lastRetransmissions;
+					e.duplicateAcks = d - lastDupAcks;
+					e.window = window.getAsInt();
+					e.rtt = (long) rtt.getMean();
+					e.commit();
+				}
+				lastBytes = bytes;
+				lastRetransmissions = r;
+				lastDupAcks = d;
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	public long getDataTransferred() {
+		return data.sum();
+	}
+
+	public long getPacketsTransferred() {
+		return packets.sum();
+	}
+
+	public long getOutOfSequencePackets() {
+		return outOfSequence.sum();
+	}
+
+	public long getBadChecksumPackets() {
+		return badChecksum.sum();
+	}
+
+	public long getRetransmissions() {
+		return retransmissions.sum();
+	}
+
+	public long getDuplicateAcks() {
+		return dupAcks.sum();
+	}
+
+	public long getZeroWindows() {
+		return zeroWindows.sum();
+	}
+
+	public long getCompressedSegments() {
+		return compressedSegments.sum();
+	}
+
+	public long getCompressionSaved() {
+		return compressionSaved.sum();
+	}
+
+	public long getBytesDelivered() {
+		return delivered.sum();
+	}
+
+	public int getWindow() {
+		return window.getAsInt();
+	}
+
+	public int getSendBuffer() {
+		return sendBuffer;
+	}
+
+	public int getReceiveBuffer() {
+		return receiveBuffer;
+	}
+
+	public long getQueueOverflows() {
+		return queueOverflows.getAsLong();
+	}
+
+	public long getRttMean() {
+		return (long) rtt.getMean();
+	}
+
+	public long getRttP50() {
+		return rtt.getPercentile(50);
+	}
+
+	public long getRttP99() {
+		return rtt.getPercentile(99);
+	}
+
+	public long getRttMax() {
+		return rtt.getMax();
+	}
+
+	public long getSegmentLatencyP50() {
+		return latency.getPercentile(50);
+	}
+
+	public long getSegmentLatencyP99() {
+		return latency.getPercentile(99);
+	}
+
+	public long getSegmentLatencyMax() {
+		return latency.getMax();
+	}
+
+	public long getGoodput() {
+		return lastGoodput;
+	}
+
+	public long getGoodputP50() {
+		return goodput.getPercentile(50);
+	}
+
+	public long getGoodputMin() {
+		return goodput.getPercentile(0);
+	}
+
+	public long getGoodputMax() {
+		return goodput.getMax();
+	}
+}
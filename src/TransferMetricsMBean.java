@@ -0,0 +1,93 @@
+/**
+ * What a running transfer exposes over JMX, registered as
+ * TCPend:type=Transfer,name=<Sender|Receiver>-<local port>.
+ * Times are in microseconds and goodput in bytes per second.
+ */
+public interface TransferMetricsMBean {
+	long getDataTransferred();
+
+	long getPacketsTransferred();
+
+	long getOutOfSequencePackets();
+
+	long getBadChecksumPackets();
+
+	long getRetransmissions();
+
+	long getDuplicateAcks();
+
+	/**
+	 * Zero window probes sent (Sender) or acks that had no room
+	 * to advertise (Receiver).
+	 */
+	long getZeroWindows();
+
+	/**
+	 * Segments sent deflated (Sender, retransmits not counted)
+	 * or inflated (Receiver).
+	 */
+	long getCompressedSegments();
+
+	/**
+	 * File bytes less wire bytes of those segments.
+	 */
+	long getCompressionSaved();
+
+	/**
+	 * Bytes acked (Sender) or written in order (Receiver).
+	 */
+	long getBytesDelivered();
+
+	/**
+	 * Segments the Sender may have in flight.
+	 */
+	int getWindow();
+
+	/**
+	 * SO_SNDBUF as granted by the kernel, after the last resize.
+	 */
+	int getSendBuffer();
+
+	/**
+	 * SO_RCVBUF as granted by the kernel, after the last resize.
+	 */
+	int getReceiveBuffer();
+
+	/**
+	 * Datagrams dropped because the socket's receive buffer was full,
+	 * -1 where the kernel does not say (only Linux does).
+	 */
+	long getQueueOverflows();
+
+	/**
+	 * Round trip times in us, from the send times the acks echo, so
+	 * only a Sender has them, they are 0 on a Receiver.
+	 */
+	long getRttMean();
+
+	long getRttP50();
+
+	long getRttP99();
+
+	long getRttMax();
+
+	/**
+	 * From a segment's first send to the ack that covers it.
+	 */
+	long getSegmentLatencyP50();
+
+	long getSegmentLatencyP99();
+
+	long getSegmentLatencyMax();
+
+	/**
+	 * Goodput of the last whole second.
+	 */
+	long getGoodput();
+
+	long getGoodputP50();
+
+	long getGoodputMin();
+
+	long getGoodputMax();
+}
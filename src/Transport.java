@@ -1,9 +1,12 @@
 import java.util.List;
 
+import java.net.SocketOption;
 import java.net.StandardSocketOptions;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.net.InetSocketAddress;
 import java.net.PortUnreachableException;
 import java.net.InetAddress;
@@ -12,11 +15,15 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 /**
  *  The Transport class handles the bulk of the TCP general
@@ -28,14 +35,28 @@ public abstract class Transport {
 	final protected String filename;
 	final protected int mtu;   // max transmission unit
 	final protected int sws;    // sliding window size
-	final protected TCPpacket[] buffer;
 	final protected double a = .875;	// timout var
 	final protected double b = 1 - a;	// timeout var
 	final protected int maxDataSize;
+	protected static final long MIN_TIMEOUT = 100; // ms, the handshake rtt on a lan rounds to 0
+	private static final int OPTIONS_ROOM = 40;	// as TCP, for the options of a segment
+	// largest data a segment can carry, a UDP datagram is at most 65507 bytes
+	protected static final int MAX_SEGMENT = 65507 - TCPpacket.HEADERN - OPTIONS_ROOM;
+	// data bytes one flow can carry, the seqs of its data (from 1) and its FIN are ints
+	protected static final long MAX_FLOW = Integer.MAX_VALUE - 2;
+	private static final int BUFFER_LIMIT = 16 << 20;	// bytes, the kernel may grant less
+	private static final String[] UDP_TABLES = { "/proc/net/udp", "/proc/net/udp6" };
 
 	protected int rp; // remote port
 	private DatagramPacket bufferdp;
 	private byte[] arraydp;
+	private ByteBuffer arraybuf;	// wraps arraydp for decoding
+	private ByteBuffer sendbuf;	// reused for every send
+	private final ByteBuffer[] gather = new ByteBuffer[2];	// header, payload
+	private final ArrayDeque<TCPpacket> pool = new ArrayDeque<>();
+	private Selector selector;	// only open while polling
+	private SelectionKey pollKey;
+	private ByteBuffer pollbuf;
 	protected int currentAck;
 	protected int currentSeq;
 	protected DatagramSocket socket;
@@ -44,12 +65,16 @@ public abstract class Transport {
 	protected long timeOut = 5000;
 	protected double ERTT;	// timeout var
 	protected double EDEV;	// timeout var
-	protected int dataTransferred = 0;
-	protected int packetsTransferred = 0;
-	protected int outOfSequencePackets = 0;
-	protected int incorrectChecksum = 0;
-	protected int numRetransmissions = 0;
-	protected int dupAcks = 0;
+	final protected TransferMetrics metrics = new TransferMetrics();	// counters, readable while running
+	protected CongestionControl cc;	// null keeps the window at sws
+	protected PacketTrace trace;	// null when tracing is off
+	private boolean quiet;
+	private int bufferLimit = BUFFER_LIMIT;
+	private int bufferAsked;	// bytes, the socket buffer size last asked for
+	private long minRtt = Long.MAX_VALUE;	// us
+	private long sampleStart;	// ns, start of the delivery rate sample
+	private long sampleBytes;	// delivered since sampleStart
+	private double maxRate;	// bytes/us, the highest delivery rate sampled
 
 	protected Transport(int lp, int rp, String filename, int mtu, int sws) throws SocketException {
 		this.lp = lp;
@@ -57,22 +82,23 @@ public abstract class Transport {
 		this.filename = filename;
 		this.mtu = mtu;
 		this.sws = sws;
-		this.buffer = new TCPpacket[sws];
 		this.maxDataSize = mtu - 20 - 8 - 24; // includes our header, used to split file into chunks
 		arraydp = new byte[mtu - 20 - 8]; // does not include our header!
+		arraybuf = ByteBuffer.wrap(arraydp);
+		sendbuf = ByteBuffer.allocateDirect(mtu);
+		pollbuf = ByteBuffer.allocateDirect(mtu);
 		try {
 			this.channel = DatagramChannel.open();
 			this.socket = channel.socket();
 			this.socket.bind(new InetSocketAddress(lp));
-			if (this.socket.getSendBufferSize() < mtu * 10)
-				this.channel.setOption(StandardSocketOptions.SO_SNDBUF, mtu * 10);
-			if (this.socket.getReceiveBufferSize() < mtu * 10)
-				this.channel.setOption(StandardSocketOptions.SO_RCVBUF, mtu * 10);
-			// System.out.println("snd buffer size: " + this.socket.getSendBufferSize());
-			// System.out.println("rcv buffer size: " + this.socket.getReceiveBufferSize());
+			tuneBuffers(mtu * 10);
 		} catch (IOException e) {
-			System.err.println(e.getMessage());
-			System.exit(1);
+			close();
+			if (e instanceof SocketException)
+				throw (SocketException) e;
+			SocketException s = new SocketException(e.getMessage());
+			s.initCause(e);
+			throw s;
 		}
 	}
 
@@ -82,6 +108,7 @@ public abstract class Transport {
 		// that is implemented in the Sender and Receiver class
 		if ((bufferdp = initConnection()) == null) {
 			System.err.println("Failed to connect");
+			close();
 			return false;
 		}
 
@@ -91,9 +118,11 @@ public abstract class Transport {
 			currentAck = last.getAckNum();
 		} catch (SerialException e) {
 			System.err.println("Bad initConnection() - no readable ack");
+			close();
 			return false;
 		} catch (IOException e) {
 			System.err.println("Failed to connect DatagramChannel() " + e.getMessage());
+			close();
 			return false;
 		}
 
@@ -101,49 +130,217 @@ public abstract class Transport {
 		rp = bufferdp.getPort();
 		addr = bufferdp.getAddress();
 
-		TCPpacket fin = transferData();
-
-		termConnection(fin);
-		String msg = "Data Transferred: " + this.dataTransferred;
-		msg += "\nPackets sent: " + this.packetsTransferred;
-		msg += "\nOut of Sequence Packets: " + outOfSequencePackets;
-		msg += "\nBad Checksum Packets: " + incorrectChecksum;
-		msg += "\nNumber of Retransmissions: " + numRetransmissions;
-		msg += "\nDuplicate Acknowledgements: " + dupAcks;
+		metrics.setWindow(this::sendWindow);
+		metrics.setQueueOverflows(this::queueOverflows);
+		if (!quiet)
+			metrics.start(getClass().getSimpleName() + "-" + socket.getLocalPort());
+		try {
+			TCPpacket fin = transferData();
+			termConnection(fin);
+		} catch (RuntimeException e) { // given up on the connection
+			System.err.println("Transfer failed: " + e);
+			metrics.stop();
+			close();
+			return false;
+		}
+		metrics.stop();
+		if (quiet) {
+			close();
+			return true;
+		}
+		if (trace != null)
+			trace.close(); // the packet lines come before the stats
+		String msg = "Data Transferred: " + metrics.getDataTransferred();
+		msg += "\nPackets sent: " + metrics.getPacketsTransferred();
+		msg += "\nOut of Sequence Packets: " + metrics.getOutOfSequencePackets();
+		msg += "\nBad Checksum Packets: " + metrics.getBadChecksumPackets();
+		msg += "\nNumber of Retransmissions: " + metrics.getRetransmissions();
+		msg += "\nDuplicate Acknowledgements: " + metrics.getDuplicateAcks();
+		if (metrics.getZeroWindows() > 0)
+			msg += "\nZero Windows: " + metrics.getZeroWindows();
+		if (metrics.getCompressedSegments() > 0)
+			msg += "\nCompressed Segments: " + metrics.getCompressedSegments() + ", " + metrics.getCompressionSaved() + " bytes saved";
+		msg += "\nSocket Buffers (send/receive): " + metrics.getSendBuffer() + "/" + metrics.getReceiveBuffer();
+		if (metrics.getQueueOverflows() >= 0)
+			msg += "\nReceive Queue Overflows: " + metrics.getQueueOverflows();
+		if (metrics.getRttMax() > 0)
+			msg += "\nRTT (us) p50/p99/max: " + metrics.getRttP50() + "/" + metrics.getRttP99() + "/" + metrics.getRttMax();
+		if (cc != null) {
+			msg += "\nCongestion Control: " + cc;
+			msg += "\nCongestion Window: " + cc.window();
+			msg += "\nSlow Start Threshold: " + cc.ssthresh();
+		}
 		System.out.println(msg);
+		close();
+		return true;
+	}
+
+	/**
+	 * Makes room for segments of up to dataLen data bytes in the send
+	 * and receive buffers, and grows the socket buffers to hold as many
+	 * of them as the constructor made room for. Called during the
+	 * handshake once both ends agreed to larger segments.
+	 */
+	protected void resizeBuffers(int dataLen) throws IOException {
+		final int size = TCPpacket.HEADERN + OPTIONS_ROOM + dataLen + 1;
+		if (size <= pollbuf.capacity())
+			return;
+		arraydp = new byte[size];
+		arraybuf = ByteBuffer.wrap(arraydp);
+		sendbuf = ByteBuffer.allocateDirect(size);
+		pollbuf = ByteBuffer.allocateDirect(size);
+		tuneBuffers((long) size * 10);
+	}
+
+	/**
+	 * @param limit bytes, the socket buffers are not grown past it
+	 */
+	public void setBufferLimit(int limit) {
+		this.bufferLimit = limit;
+	}
 
+	/**
+	 * Grows both socket buffers to hold bytes, up to the limit. They
+	 * are never shrunk, and only grown by a quarter or more at a time
+	 * as each resize is a system call. The sizes the kernel granted
+	 * (Linux caps them at rmem_max and wmem_max) go into the metrics.
+	 */
+	protected void tuneBuffers(long bytes) throws IOException {
+		final int size = (int) Math.min(bytes, bufferLimit);
+		if (size <= bufferAsked + bufferAsked / 4)
+			return;
+		bufferAsked = size;
+		if (socket.getSendBufferSize() < size)
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+		if (socket.getReceiveBufferSize() < size)
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, size);
+		metrics.setSocketBuffers(socket.getSendBufferSize(), socket.getReceiveBufferSize());
+	}
+
+	/**
+	 * Adds bytes newly acked to the delivery rate sample. Once the
+	 * sample spans the smallest RTT seen, its rate is taken and a new
+	 * one started. Meant for slow start, where the rate still shows
+	 * what the path can carry.
+	 */
+	protected void sampleDelivery(long bytes) {
+		final long now = System.nanoTime();
+		if (sampleStart == 0) {
+			sampleStart = now; // the bytes of this ack were sent before
+			return;
+		}
+		sampleBytes += bytes;
+		final long elapsed = (now - sampleStart) / 1000;
+		if (minRtt == Long.MAX_VALUE || elapsed < Math.max(minRtt, 1000))
+			return;
+		maxRate = Math.max(maxRate, (double) sampleBytes / elapsed);
+		sampleStart = now;
+		sampleBytes = 0;
+	}
+
+	/**
+	 * @return bytes, the highest delivery rate sampled times the
+	 * smallest RTT, 0 before there is a sample
+	 */
+	protected long bandwidthDelay() {
+		return minRtt == Long.MAX_VALUE ? 0 : (long) (maxRate * minRtt);
+	}
+
+	/**
+	 * Datagrams the kernel dropped because the receive buffer was
+	 * full, read from the drops column of the socket's line in
+	 * /proc/net/udp (or udp6).
+	 *
+	 * @return the count or -1 where there is no such table
+	 */
+	private long queueOverflows() {
+		final int port = socket.getLocalPort();
+		long drops = -1;
+		for (String table : UDP_TABLES) {
+			try {
+				long d = udpDrops(Files.readAllLines(Paths.get(table)), port);
+				if (d >= 0)
+					drops = Math.max(drops, 0) + d;
+			} catch (IOException e) {
+				// not Linux, or no IPv6
+			}
+		}
+		return drops;
+	}
+
+	/**
+	 * @param lines of a /proc/net/udp table, the header first
+	 * @return the drops of the sockets bound to port, -1 if there are none
+	 */
+	static long udpDrops(List<String> lines, int port) {
+		long drops = -1;
+		for (int i = 1; i < lines.size(); i++) {
+			String[] f = lines.get(i).trim().split("\\s+");
+			if (f.length < 13)
+				continue;
+			String local = f[1];
+			if (Integer.parseInt(local.substring(local.indexOf(':') + 1), 16) != port)
+				continue;
+			drops = Math.max(drops, 0) + Long.parseLong(f[f.length - 1]);
+		}
+		return drops;
+	}
+
+	/**
+	 * Sets the don't fragment bit on the datagrams sent, so that one
+	 * larger than the path MTU is dropped (or refused by the send)
+	 * instead of fragmented. The option is only in JDK 19 and up and
+	 * is looked up by reflection.
+	 *
+	 * @return false if it could not be set, datagrams may be fragmented
+	 */
+	@SuppressWarnings("unchecked")
+	protected boolean setDontFragment() {
+		try {
+			Object option = Class.forName("jdk.net.ExtendedSocketOptions").getField("IP_DONTFRAGMENT").get(null);
+			channel.setOption((SocketOption<Boolean>) option, true);
+			return true;
+		} catch (ReflectiveOperationException | UnsupportedOperationException | IOException e) {
+			return false;
+		}
+	}
+
+	protected void close() {
 		try {
-			if (channel.isOpen())
+			if (selector != null)
+				selector.close();
+			if (channel != null && channel.isOpen())
 				channel.close();
 		} catch (IOException e) {
 			System.err.println("Failed to close channel gracefully. Leaving it up to the OS");
 		}
+	}
 
-		return true;
+	/**
+	 * For one of many transfers in a JVM: the stats are not printed,
+	 * the metrics are not registered with JMX or sampled, and the trace
+	 * is left open as it is likely shared with the other transfers.
+	 */
+	public void setQuiet(boolean quiet) {
+		this.quiet = quiet;
 	}
 
+	/**
+	 * Records p in the trace, the line is printed (or written) by the
+	 * trace's own thread.
+	 */
 	public void printPacket(TCPpacket p, boolean isSending){
-		String msg = ""; 
-		if (isSending) msg += "snd ";
-		else msg += "rcv ";
-		msg += p.getTime();
-		if(p.isSyn()) msg += " S";
-		else msg += " -";
-		if(p.isAck()) msg += " A";
-		else msg += " -";
-		if(p.isFin()) msg += " F";
-		else msg += " -";
-		if(p.getDataLen() > 0) msg += " D ";
-		else msg += " - ";
-		msg += p.getSeq() + " " + p.getDataLen() + " " + p.getAckNum();
-		System.out.println(msg); 
-		packetsTransferred += 1;
-	}
-
-	private void updateTimeOut(TCPpacket p) {
+		if (trace != null)
+			trace.record(isSending, p);
+		metrics.packet();
+	}
+
+	protected void updateTimeOut(TCPpacket p) {
 		long S = p.getSeq();
 		long T = p.getTime();
 		long C = System.nanoTime();
+		if (C > T)
+			minRtt = Math.min(minRtt, Math.max(1, (C - T) / 1000));
 		if (S == 0){
 			//System.out.println("Setting init");
 			ERTT = (C - T) / 1000000;
@@ -159,25 +356,121 @@ public abstract class Transport {
 		}
 	}
 
-	private int getTimeOut() {
+	public void setCongestionControl(CongestionControl cc) {
+		this.cc = cc;
+	}
+
+	/**
+	 * @param trace where sent and received packets are recorded, null for none
+	 */
+	public void setTrace(PacketTrace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Segments that may be in flight, consulted before each new send.
+	 */
+	protected int sendWindow() {
+		return cc == null ? sws : Math.min(sws, cc.window());
+	}
+
+	protected int getTimeOut() {
 		return (int) this.timeOut;
 	}
 
+	/**
+	 * Takes a packet from the pool to decode into, packets
+	 * that are no longer referenced should be handed back with
+	 * recyclePacket(TCPpacket) so receiving does not allocate.
+	 */
+	protected TCPpacket obtainPacket() {
+		TCPpacket p = pool.poll();
+		return p == null ? new TCPpacket() : p;
+	}
+
+	protected void recyclePacket(TCPpacket p) {
+		if (p != null)
+			pool.push(p);
+	}
+
+	/**
+	 * Encodes p into the reused send buffer and sends it.
+	 * Once the channel is connected the address of indp
+	 * is not looked at (avoids an InetSocketAddress per send).
+	 * During the handshake indp is left holding the sent
+	 * datagram, transfer() reads the last ack from it.
+	 * A packet with a payload buffer is sent with a gathering
+	 * write so its data is not copied.
+	 */
+	private void send(DatagramPacket indp, TCPpacket p) throws IOException {
+		ByteBuffer payload = p.getPayload();
+		if (payload != null && channel.isConnected()) {
+			// header from sendbuf, data straight from the payload (no copy)
+			sendbuf.clear();
+			p.encodeHeader(sendbuf);
+			sendbuf.flip();
+			final int pos = payload.position();
+			gather[0] = sendbuf;
+			gather[1] = payload;
+			channel.write(gather);
+			payload.position(pos);
+			return;
+		}
+		sendbuf.clear();
+		final int n = p.encode(sendbuf);
+		sendbuf.flip();
+		if (channel.isConnected()) {
+			channel.write(sendbuf);
+			return;
+		}
+		channel.send(sendbuf, indp.getSocketAddress());
+		sendbuf.get(0, arraydp, 0, n);
+		indp.setData(arraydp, 0, n);
+	}
+
+	/**
+	 * Waits up to timeout ms (0 for no limit) for a datagram and decodes
+	 * it, indp is set to its bytes and to the address it came from.
+	 * This goes through the channel and a selector rather than the
+	 * socket adaptor, whose receive holds a monitor while it blocks
+	 * and so pins a virtual thread to its carrier.
+	 *
+	 * @throws SocketTimeoutException if nothing arrived in time
+	 */
+	protected TCPpacket receive(DatagramPacket indp, long timeout) throws IOException, SerialException {
+		startPolling();
+		final long deadline = System.currentTimeMillis() + timeout;
+		SocketAddress from;
+		arraybuf.clear();
+		while ((from = channel.receive(arraybuf)) == null) {
+			long left = deadline - System.currentTimeMillis();
+			if (timeout > 0 && left <= 0)
+				throw new SocketTimeoutException("Receive timed out");
+			await(timeout > 0 ? left : 0);
+		}
+		arraybuf.flip();
+		indp.setData(arraydp, 0, arraybuf.limit());
+		indp.setSocketAddress(from);
+		TCPpacket p = obtainPacket();
+		try {
+			return p.decode(arraybuf);
+		} catch (SerialException e) {
+			recyclePacket(p);
+			throw e;
+		}
+	}
+
 	protected boolean sendData(DatagramPacket indp, TCPpacket p) {
 		if (indp == null)
 			throw new NullPointerException("buffer DatagramPacket is not initialized. Likely called sendData(TCPpacket) before or in initConnection()");
-		indp.setData(p.serialize());
 		try {
-
-			socket.send(indp);
+			send(indp, p);
 			printPacket(p, true);
 			return true;
 		} catch (PortUnreachableException e) {
 			return false;
 		}catch (IOException e) {
-			e.printStackTrace();
-			System.exit(1); // FIXME may change to return boolean etc
-			return false;
+			throw new UncheckedIOException(e);
 		}
 	}
 
@@ -191,6 +484,77 @@ public abstract class Transport {
 		return sendData(bufferdp, p);
 	}
 
+	/**
+	 * Switches the channel to non-blocking and registers it with a
+	 * selector for pollData(long) and receive(DatagramPacket, long).
+	 * It stays that way, a virtual thread's channel may also be
+	 * registered with the ReadPoller. Sends on a non-blocking channel
+	 * drop the datagram when the socket buffer is full, as the network
+	 * would.
+	 */
+	protected void startPolling() throws IOException {
+		if (pollKey != null)
+			return;
+		selector = Selector.open();
+		channel.configureBlocking(false);
+		pollKey = channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Waits up to timeout ms for a packet to arrive, a timeout
+	 * of 0 only takes what is already queued. Packets with a bad
+	 * checksum are counted and skipped. Requires startPolling().
+	 *
+	 * @return the pooled packet read or null on timeout
+	 */
+	protected TCPpacket pollData(long timeout) throws IOException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		TCPpacket p;
+		while ((p = readPacket()) == null) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0)
+				return null;
+			await(left);
+		}
+		printPacket(p, false);
+		return p;
+	}
+
+	/**
+	 * Waits up to timeout ms (0 for no limit) for the channel to be
+	 * readable. A virtual thread waits through the ReadPoller so that
+	 * it gives up its carrier, see there.
+	 */
+	private void await(long timeout) throws IOException {
+		if (Threads.isVirtual()) {
+			ReadPoller.await(channel, timeout);
+			return;
+		}
+		selector.select(timeout);
+		selector.selectedKeys().clear();
+	}
+
+	/**
+	 * Reads one queued datagram without blocking.
+	 */
+	private TCPpacket readPacket() throws IOException {
+		while (true) {
+			pollbuf.clear();
+			if (channel.read(pollbuf) <= 0)
+				return null;
+			pollbuf.flip();
+			TCPpacket p = obtainPacket();
+			try {
+				return p.decode(pollbuf);
+			} catch (ChecksumException e) {
+				metrics.badChecksum();
+			} catch (SerialException e) {
+				// discard
+			}
+			recyclePacket(p);
+		}
+	}
+
 	/**
 	 * NOTE Should only be called after initConnection returns
 	 *
@@ -202,21 +566,13 @@ public abstract class Transport {
 	public TCPpacket receiveData(DatagramPacket indp, TCPpacket out) {
 		if (indp == null) throw new NullPointerException("buffer DatagramPacket is not initialized. Likely called receiveData(TCPpacket) before or in initConnection()");
 		int reTransmissions = 0;
-		try {
-			int to = getTimeOut();
-			socket.setSoTimeout(getTimeOut());
-			// System.out.println("timeout: " + to);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
 		// set bufferdp
 		while(reTransmissions < 16) {
 			try {
-				indp.setData(arraydp);
-				socket.receive(indp);
-				TCPpacket p = TCPpacket.deserialize(indp.getData());
+				// 16 timeouts of a 1ms rtt are over before a busy sender is scheduled again
+				TCPpacket p = receive(indp, Math.max(getTimeOut(), MIN_TIMEOUT));
 				if(p.getAckNum() == this.currentAck){
-					dupAcks += 1;
+					metrics.dupAck();
 				}
 				updateTimeOut(p);
 				printPacket(p, false);
@@ -226,17 +582,20 @@ public abstract class Transport {
 				try {
 					// System.out.println("Retransmitting");
 					out.setCurrentTime();
-					indp.setData(out.serialize());
-					socket.send(indp); // should be set with data already
+					send(indp, out);
 					reTransmissions += 1;
-					numRetransmissions += 1;
+					metrics.retransmission(out.getSeq());
+				} catch (PortUnreachableException ex) {
+					throw unreachable(ex);
 				} catch (Exception ex) {
 					ex.printStackTrace();
 				}
 				continue;
+			} catch (PortUnreachableException e) {
+				throw unreachable(e);
 			}
 			catch (ChecksumException e) {
-				incorrectChecksum += 1;
+				metrics.badChecksum();
 				System.out.println("Discarding Packet because of bad checksum");
 			}
 			catch (Exception e) {
@@ -250,39 +609,47 @@ public abstract class Transport {
 		throw new IllegalStateException("Lost Connection");
 	}
 
+	/**
+	 * An ICMP port unreachable came back, nothing listens on the
+	 * peer's port any more and no retry will be answered.
+	 */
+	private static IllegalStateException unreachable(PortUnreachableException e) {
+		System.out.println("Port unreachable, the peer has closed");
+		return new IllegalStateException("Lost Connection", e);
+	}
+
 	protected TCPpacket receiveDataTransfer(TCPpacket out) {
 		return receiveDataTransfer(bufferdp, out);
 	}
 
+	/**
+	 * Waits for a packet that acks past currentAck, out is sent again
+	 * at every timeout, doubled each time as a segment's is (the
+	 * receiver of a delta checks the whole file before it answers a FIN).
+	 */
 	public TCPpacket receiveDataTransfer(DatagramPacket indp, TCPpacket out) {
 		if (indp == null) throw new NullPointerException("buffer DatagramPacket is not initialized. Likely called receiveData(TCPpacket) before or in initConnection()");
 		int reTransmissions = 0;
-		try {
-			int to = getTimeOut();
-			socket.setSoTimeout(getTimeOut());
-			//System.out.println("timeout: " + to);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
 		int duplicateAcks = 0;
 		// set bufferdp
 		while(reTransmissions < 16) {
 			try {
-				indp.setData(arraydp);
-				socket.receive(indp);
-				TCPpacket p = TCPpacket.deserialize(indp.getData());
-				if(p.getAckNum() <= this.currentAck){ // discard packet
-					if(p.getAckNum() == this.currentAck){
-						dupAcks += 1;
+				TCPpacket p = receive(indp, Math.max(getTimeOut(), MIN_TIMEOUT) << Math.min(reTransmissions, 6));
+				final int ackNum = p.getAckNum();
+				if(ackNum <= this.currentAck){ // discard packet
+					recyclePacket(p);
+					if(ackNum == this.currentAck){
+						metrics.dupAck();
 						duplicateAcks += 1;
 						if(duplicateAcks%3 == 0) // Fast Retransmit with 3 duplicate ACKs
 							throw new SocketTimeoutException();
 					}
 					else
-						outOfSequencePackets += 1;
-					throw new IllegalArgumentException("Discarding packet due to bad ACK NUM: "+p.getAckNum());
+						metrics.outOfSequence();
+					throw new IllegalArgumentException("Discarding packet due to bad ACK NUM: "+ackNum);
 				}
-				updateTimeOut(p);
+				if (reTransmissions == 0) // which one was answered is not known (Karn)
+					updateTimeOut(p);
 				printPacket(p, false);
 				return p;
 			} catch (SocketTimeoutException e) {
@@ -290,19 +657,22 @@ public abstract class Transport {
 				try {
 					// System.out.println("Retransmitting");
 					out.setCurrentTime();
-					indp.setData(out.serialize());
-					socket.send(indp); // should be set with data already
+					send(indp, out);
 					reTransmissions += 1;
-					numRetransmissions += 1;
+					metrics.retransmission(out.getSeq());
+				} catch (PortUnreachableException ex) {
+					throw unreachable(ex);
 				} catch (Exception ex) {
 					ex.printStackTrace();
 				}
 				continue;
+			} catch (PortUnreachableException e) {
+				throw unreachable(e);
 			}
 			catch (IllegalArgumentException e) {
 				// System.out.println(e.getMessage());
 			}catch (ChecksumException e) {
-				incorrectChecksum += 1;
+				metrics.badChecksum();
 				// System.out.println("Discarding Packet because of bad checksum");
 			}
 			catch (Exception e) {
@@ -313,8 +683,7 @@ public abstract class Transport {
 			}
 		}
 		System.out.println("Tried Retransmitting 16 times");
-		System.exit(1);
-		return null;
+		throw new IllegalStateException("Lost Connection");
 	}
 
 	/**
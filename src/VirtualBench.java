@@ -0,0 +1,118 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Many concurrent transfers in one JVM, a TransferListener receiving
+ * what a TransferClient sends over loopback, once with a thread per
+ * transfer on each side as platform threads and once as virtual
+ * threads. Prints the time for all of them, how many arrived intact
+ * and the most platform threads alive at once.
+ *
+ * java VirtualBench [-n transfers] [-size bytes] [-m mtu] [-c sws]
+ *   [-mode both|virtual|platform]
+ *
+ * To check that no virtual thread is pinned to its carrier while it
+ * blocks, run it on 21 with -Djdk.tracePinnedThreads=short.
+ */
+public class VirtualBench {
+
+	private int n = 1000;
+	private int size = 16 * 1024;
+	private int mtu = 1500;
+	private int sws = 16;
+
+	private void run(boolean virtual, File source) throws IOException, InterruptedException {
+		File dir = Files.createTempDirectory("vbench").toFile();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		TransferListener listener = new TransferListener(0, new File(dir, "out").getPath(), mtu, sws, virtual);
+		Thread listening = new Thread(() -> {
+			try {
+				listener.run();
+			} catch (IOException e) {
+				System.err.println("Listener stopped: " + e.getMessage());
+			}
+		}, "listener");
+		listening.start();
+
+		long start = System.nanoTime();
+		int sent = 0;
+		try (TransferClient client = new TransferClient(virtual)) {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < n; i++)
+				results.add(client.send("127.0.0.1", listener.getPort(), source.getPath(), mtu, sws));
+			for (Future<Boolean> f : results) {
+				try {
+					if (f.get())
+						sent++;
+				} catch (ExecutionException e) {
+					System.err.println("Transfer failed: " + e.getCause());
+				}
+			}
+		}
+		while (listener.getCompleted() + listener.getFailed() < sent && listening.isAlive())
+			Thread.sleep(10); // the receivers' last acks
+		double secs = (System.nanoTime() - start) / 1e9;
+		listener.close();
+		listening.join();
+
+		int intact = 0;
+		File[] outs = dir.listFiles();
+		for (File f : outs) {
+			if (Files.mismatch(f.toPath(), source.toPath()) == -1)
+				intact++;
+			f.delete();
+		}
+		dir.delete();
+		Runtime rt = Runtime.getRuntime();
+		System.out.printf("%8s %8d %8d %8.2f %10.1f %8d %8d\n", virtual ? "virtual" : "platform", n, intact, secs,
+				n / secs, threads.getPeakThreadCount(), (rt.totalMemory() - rt.freeMemory()) >> 20);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		VirtualBench b = new VirtualBench();
+		String mode = "both";
+		try {
+			for (int i = 0; i + 1 < args.length; i += 2) {
+				String arg = args[i + 1];
+				switch (args[i]) {
+					case "-n": b.n = Integer.parseInt(arg); break;
+					case "-size": b.size = Integer.parseInt(arg); break;
+					case "-m": b.mtu = Integer.parseInt(arg); break;
+					case "-c": b.sws = Integer.parseInt(arg); break;
+					case "-mode": mode = arg; break;
+					default:
+						System.err.println("Unexpected option: " + args[i]);
+						return;
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Bad number: " + e.getMessage());
+			return;
+		}
+		if (!Threads.hasVirtual() && !mode.equals("platform"))
+			System.out.println("No virtual threads before 21, both runs use platform threads");
+
+		File source = File.createTempFile("vbench", ".bin");
+		source.deleteOnExit();
+		byte[] data = new byte[b.size];
+		new Random(640).nextBytes(data);
+		Files.write(source.toPath(), data);
+
+		System.out.printf("%d transfers of %d bytes, mtu %d, sws %d\n", b.n, b.size, b.mtu, b.sws);
+		System.out.printf("%8s %8s %8s %8s %10s %8s %8s\n", "threads", "sent", "intact", "time(s)", "xfers/s",
+				"peak", "heap(MB)");
+		if (!mode.equals("virtual"))
+			b.run(false, source);
+		if (!mode.equals("platform"))
+			b.run(true, source);
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * The Sender's sliding window: a circular
+ * buffer of slots where index i is the i-th segment from the start
+ * of the window. Lookup, insert and sliding the start forward by
+ * one segment are all O(1), nothing is shifted.
+ *
+ * The capacity is rounded up to a power of 2 so that the slot of
+ * a segment is (head + i) & mask. Per segment state kept by the
+ * caller in primitive arrays of capacity() elements is indexed
+ * with slot(i), and is left to the caller to reset on a slide.
+ */
+public class Window<T> {
+	private final Object[] items;
+	private final int mask;
+	private final int size;	// max segments in the window (sws)
+	private int head;	// slot of the start of the window
+	private int length;	// segments added with add(T) from the start
+
+	public Window(int size) {
+		if (size <= 0 || size > (1 << 30))
+			throw new IllegalArgumentException("Window size must be in (0, 2^30]: " + size);
+		this.size = size;
+		int capacity = Integer.highestOneBit(size);
+		if (capacity < size)
+			capacity <<= 1;
+		this.items = new Object[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * The length of arrays indexed by slot(int).
+	 */
+	public int capacity() {
+		return items.length;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int slot(int i) {
+		return (head + i) & mask;
+	}
+
+	/**
+	 * The inverse of slot(int), the index in the window of slot.
+	 */
+	public int index(int slot) {
+		return (slot - head) & mask;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(int i) {
+		return (T) items[(head + i) & mask];
+	}
+
+	public void set(int i, T t) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Segment " + i + " is outside of a window of " + size);
+		items[(head + i) & mask] = t;
+	}
+
+	/**
+	 * Segments in the window when it is filled in order with add(T).
+	 */
+	public int length() {
+		return length;
+	}
+
+	public boolean isFull() {
+		return length >= size;
+	}
+
+	/**
+	 * Appends t after the last added segment.
+	 *
+	 * @return the slot of t
+	 */
+	public int add(T t) {
+		if (isFull())
+			throw new IllegalStateException("Window is full");
+		int slot = (head + length) & mask;
+		items[slot] = t;
+		length++;
+		return slot;
+	}
+
+	/**
+	 * Moves the start of the window past n segments,
+	 * clearing their slots.
+	 */
+	public void slide(int n) {
+		for (int i = 0; i < n; i++)
+			items[(head + i) & mask] = null;
+		head = (head + n) & mask;
+		length = Math.max(0, length - n);
+	}
+}
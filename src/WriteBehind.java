@@ -0,0 +1,246 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes to a file on a thread of its own so that the Receiver can go
+ * on reading datagrams while the disk catches up. The bytes are copied
+ * into a ring of capacity bytes and written in the order they came,
+ * pending() is how many have not reached the file yet, which is what
+ * the Receiver leaves out of the window it advertises. A write that
+ * does not fit waits for the writer. It waits with a lock and not a
+ * monitor, so a virtual thread is not pinned. Bytes copied from
+ * another file (the blocks a delta reuses) go through the same queue,
+ * in order, but not through the ring. Appends go to any channel, a
+ * pipe or a socket as well as a file, writes at a position only to a
+ * FileChannel.
+ */
+public class WriteBehind implements Closeable {
+
+	private final WritableByteChannel file;
+	private final ByteBuffer ring;
+	private final int capacity;
+	private final ArrayDeque<long[]> blocks = new ArrayDeque<>();	// file position (-1 to append) and length, and the source position of a copy
+	private FileChannel source;	// copies are read from it
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition queued = lock.newCondition();
+	private final Condition drained = lock.newCondition();
+	private final Thread writer;
+	private volatile long head;	// bytes put in the ring
+	private volatile long tail;	// bytes written to the file
+	private boolean closed;
+	private boolean finished;	// the writer was joined, close() has nothing to do
+	private IOException failure;
+
+	/**
+	 * @param file positioned at the end for the appended writes,
+	 * blocking, it is not closed
+	 */
+	public WriteBehind(WritableByteChannel file, int capacity) {
+		this.file = file;
+		this.capacity = capacity;
+		this.ring = ByteBuffer.allocateDirect(capacity);
+		writer = Threads.start(Threads.isVirtual(), this::run, "write-behind");
+	}
+
+	/**
+	 * @return bytes taken that are not in the file yet
+	 */
+	public long pending() {
+		return head - tail;
+	}
+
+	/**
+	 * @return bytes taken since it was made
+	 */
+	public long queued() {
+		return head;
+	}
+
+	/**
+	 * @return bytes that reached the file (or failed to)
+	 */
+	public long written() {
+		return tail;
+	}
+
+	/**
+	 * @return true if a write failed, what was queued may not all be in the file
+	 */
+	public boolean failed() {
+		lock.lock();
+		try {
+			return failure != null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues len bytes of b from off, written at position in the file
+	 * or after the previous appended ones if position is -1.
+	 *
+	 * @throws UncheckedIOException if an earlier write failed
+	 */
+	public void write(byte[] b, int off, int len, long position) {
+		if (len > capacity)
+			throw new IllegalArgumentException(len + " bytes do not fit in " + capacity);
+		if (position >= 0 && !(file instanceof FileChannel))
+			throw new IllegalArgumentException("Writes at a position need a file");
+		lock.lock();
+		try {
+			while (failure == null && head - tail + len > capacity)
+				drained.awaitUninterruptibly();
+			if (failure != null)
+				throw new UncheckedIOException(failure);
+		} finally {
+			lock.unlock();
+		}
+		// only the writer reads the ring, and not past head
+		int at = (int) (head % capacity);
+		int first = Math.min(len, capacity - at);
+		ring.put(at, b, off, first);
+		ring.put(0, b, off + first, len - first);
+		lock.lock();
+		try {
+			blocks.add(new long[] { position, len });
+			head += len;
+			queued.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues len bytes of source from position to be appended, read by
+	 * the writer with transferTo. They take no room in the ring.
+	 *
+	 * @throws UncheckedIOException if an earlier write failed
+	 */
+	public void copy(FileChannel source, long position, long len) {
+		lock.lock();
+		try {
+			if (failure != null)
+				throw new UncheckedIOException(failure);
+			if (this.source != null && this.source != source)
+				throw new IllegalArgumentException("Copies come from one file");
+			this.source = source;
+			blocks.add(new long[] { -1, len, position });
+			queued.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void run() {
+		while (true) {
+			long[] block;
+			lock.lock();
+			try {
+				while (blocks.isEmpty() && !closed)
+					queued.awaitUninterruptibly();
+				if (blocks.isEmpty())
+					return;
+				block = blocks.peek();
+			} finally {
+				lock.unlock();
+			}
+			IOException e = null;
+			try {
+				if (block.length == 3)
+					copyBlock(block[2], block[1]);
+				else
+					writeBlock(block[0], (int) block[1]);
+			} catch (IOException x) {
+				e = x;
+			}
+			lock.lock();
+			try {
+				blocks.poll();
+				if (block.length == 2)
+					tail += block[1];
+				if (e != null && failure == null)
+					failure = e;
+				drained.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void writeBlock(long position, int len) throws IOException {
+		int at = (int) (tail % capacity);
+		int first = Math.min(len, capacity - at);
+		ByteBuffer a = ring.slice(at, first);
+		ByteBuffer b = ring.slice(0, len - first);
+		if (position < 0 && file instanceof GatheringByteChannel) {
+			while (a.hasRemaining() || b.hasRemaining())
+				((GatheringByteChannel) file).write(new ByteBuffer[] { a, b });
+		} else if (position < 0) {
+			while (a.hasRemaining())
+				file.write(a);
+			while (b.hasRemaining())
+				file.write(b);
+		} else {
+			FileChannel fc = (FileChannel) file;
+			while (a.hasRemaining())
+				position += fc.write(a, position);
+			while (b.hasRemaining())
+				position += fc.write(b, position);
+		}
+	}
+
+	private void copyBlock(long position, long len) throws IOException {
+		while (len > 0) {
+			long n = source.transferTo(position, len, file);
+			if (n == 0)
+				throw new IOException("Copy source ends before " + position);
+			position += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Waits until everything queued is in the file and stops the writer,
+	 * nothing more can be queued after.
+	 *
+	 * @throws IOException if a write failed
+	 */
+	public void finish() throws IOException {
+		lock.lock();
+		try {
+			closed = true;
+			queued.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for the writer");
+		}
+		finished = true;
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Finishes the writer if that was not done already, a failure
+	 * finish() threw is not thrown again.
+	 *
+	 * @throws IOException if a write failed
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!finished)
+			finish();
+	}
+}